@@ -5,16 +5,18 @@
 package base;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 
 import peernet.config.Configuration;
 import peernet.core.CommonState;
+import peernet.core.EngineAgent;
 import peernet.core.Linkable;
 import peernet.core.Network;
+import peernet.core.Node;
 import peernet.core.Peer;
 import peernet.core.Protocol;
 import peernet.transport.Address;
+import peernet.transport.AddressSim;
 
 
 
@@ -25,18 +27,29 @@ public abstract class BaseDissemination extends Protocol implements Linkable
   static private final String PAR_EXTRA_ROUND_TRIPS = "extra_tcp_trips";
   static private final String PAR_HEADER_ONLY = "header_only";
   static private final String PAR_BODY_REQUESTS = "body_requests";
+  static private final String PAR_BLOCK_WINDOW = "block_window";
+  static private final String PAR_BODY_SIZE = "body_size";
+  static private final String PAR_THREADS = "threads";
 
-  static protected int pid;
+  static final int HEADER_SIZE = 80;   // bytes
+  static final int REQUEST_SIZE = 40;  // bytes
 
-  static private int header_validation_time;
-  static private int body_validation_time;
-  static private boolean headerOnly;
-  static private int bodyRequests = 0; // From how many upstream peers to pull a body.
+  final int header_validation_time;
+  final int body_validation_time;
+  final boolean headerOnly;
+  final int bodyRequests; // From how many upstream peers to pull a body.
+  final int bodySize;  // bytes
 
-  HashSet<Integer> receivedHeaders;
-  HashSet<Integer> receivedBodies;
-  HashSet<Integer> validatedBodies;
-  HashMap<Integer,Integer> bodiesRequested; // The number of upstream peers from which I have requested this body
+  /** Shared by all clones of this protocol, see {@link SimulationContext}. */
+  final SimulationContext context;
+
+  /**
+   * Received, validated, and requested blocks of this node. If
+   * {@code block_window} is positive (default 64), only that many recent
+   * blocks are kept, see {@link BlockStateWindow}. If 0, all blocks are
+   * kept forever, see {@link BlockStateSet}.
+   */
+  BlockState blockState;
 
   protected ArrayList<Peer> downstreamPeers;
 
@@ -67,34 +80,124 @@ public abstract class BaseDissemination extends Protocol implements Linkable
     DN__FORWARD_NEXT_HOP
   }
 
-  class Message implements Cloneable
+  /**
+   * Immutable dissemination message. Messages are interned per block, type,
+   * and number of hops (see {@link Block#message}), so a block's
+   * dissemination allocates a handful of messages irrespectively of the
+   * network size, and the same instance can be handed to all peers.
+   * 
+   * The upstream peer to reply to, needed by the locally scheduled events
+   * DN__SEND_BODY_REQUEST and DN__FORWARD_NEXT_HOP, is not part of the
+   * message. It travels as the source address of the event instead (see
+   * {@link BaseDissemination#schedule(long, Address, Message)}).
+   */
+  static final class Message implements Sized
   {
-    int blockId;
-    Address replyTo;
-    MSGType type;
-    int hops;        // number of hops so far (for miner, hops=0)  
-    long time;       // this block's generation time
+    final Block block;
+    final int blockId;
+    final MSGType type;
+    final int hops;        // number of hops so far (for miner, hops=0)
+    final long time;       // this block's generation time
+    final int size;        // bytes on the wire
+
+    private Message(Block block, MSGType type, int hops)
+    {
+      this.block = block;
+      this.blockId = block.id;
+      this.type = type;
+      this.hops = hops;
+      this.time = block.time;
+
+      switch (type)
+      {
+        case DN__RECEIVE_AND_PROCESS_HEADER: size = HEADER_SIZE; break;
+        case UP__SEND_BODY: size = REQUEST_SIZE; break;
+        case DN__RECEIVE_AND_PROCESS_BODY: size = block.bodySize; break;
+        default: size = 0;  // local event, never sent
+      }
+    }
+
+    @Override
+    public int size()
+    {
+      return size;
+    }
+
+    /**
+     * Returns the message of the same block with the given type and hops.
+     */
+    Message with(MSGType type, int hops)
+    {
+      return block.message(type, hops);
+    }
 
     public String toString()
     {
-      return "<"+type+","+blockId+","+time+","+replyTo+","+hops+">";
+      return "<"+type+","+blockId+","+time+","+hops+">";
+    }
+  }
+
+
+
+  /**
+   * A block in dissemination, holding the interned messages that refer to it.
+   */
+  static final class Block
+  {
+    static private final MSGType[] TYPES = MSGType.values();
+
+    final int id;
+    final long time;
+    final int bodySize;  // bytes
+    private volatile Message[] messages = new Message[TYPES.length*8];  // indexed by hops*TYPES.length+type
+
+    Block(int id, long time, int bodySize)
+    {
+      this.id = id;
+      this.time = time;
+      this.bodySize = bodySize;
     }
 
-    public Object clone()
+    Message message(MSGType type, int hops)
     {
-      try
-      {
-        return super.clone();
-      }
-      catch (CloneNotSupportedException e)
-      {
-        e.printStackTrace();
-        return null;
-      }
+      int i = hops*TYPES.length + type.ordinal();
+      Message[] ms = messages;
+      Message m = i < ms.length ? ms[i] : null;
+      return m != null ? m : create(i, type, hops);
+    }
+
+    /**
+     * Creates a message on first use. Synchronized, as the threads of a
+     * {@link ParallelKernel} may ask for the same message at once.
+     */
+    private synchronized Message create(int i, MSGType type, int hops)
+    {
+      if (i >= messages.length)
+        messages = Arrays.copyOf(messages, Math.max(2*messages.length, i+TYPES.length));
+
+      Message m = messages[i];
+      if (m == null)
+        messages[i] = m = new Message(this, type, hops);
+      return m;
     }
   }
 
 
+
+  /**
+   * Schedules a local event, carrying {@code replyTo} as its source address.
+   */
+  static private final class LocalEvents extends EngineAgent
+  {
+    void schedule(long delay, Address replyTo, Node node, int pid, Object event)
+    {
+      addEventIn(delay, replyTo, node, pid, event);
+    }
+  }
+
+  static private final LocalEvents localEvents = new LocalEvents();
+
+
   
 
   public BaseDissemination(String prefix)
@@ -106,10 +209,21 @@ public abstract class BaseDissemination extends Protocol implements Linkable
     headerOnly = Configuration.getBoolean(prefix+"."+PAR_HEADER_ONLY, false);
     bodyRequests = Configuration.getInt(prefix+"."+PAR_BODY_REQUESTS);
 
+    int window = Configuration.getInt(prefix+"."+PAR_BLOCK_WINDOW, 64);
+    blockState = window > 0 ? new BlockStateWindow(window) : new BlockStateSet();
+
+    bodySize = Configuration.getInt(prefix+"."+PAR_BODY_SIZE, 5) * 1024;  // KB, defaults to 5
+
     int extra_round_trips = Configuration.getInt(prefix+"."+PAR_EXTRA_ROUND_TRIPS);
-    TransportDeltaQ.setBodyExtraRoundTrips(extra_round_trips);
+    int threads = Configuration.getInt(prefix+"."+PAR_THREADS, 0);
+    context = new SimulationContext(extra_round_trips, threads);
+  }
 
-    pid = myPid();
+
+
+  public SimulationContext context()
+  {
+    return context;
   }
 
 
@@ -120,10 +234,7 @@ public abstract class BaseDissemination extends Protocol implements Linkable
 
     d.downstreamPeers = new ArrayList<>();
 
-    d.receivedHeaders = new HashSet<>();
-    d.receivedBodies = new HashSet<>();
-    d.validatedBodies = new HashSet<>();
-    d.bodiesRequested = new HashMap<>();
+    d.blockState = blockState.copy();
 
     return d;
   }
@@ -145,21 +256,18 @@ public abstract class BaseDissemination extends Protocol implements Linkable
       case UP__GENERATE_NEW_BLOCK:
       {
         // Pretend I just "received" header and body
-        receivedHeaders.add(msg.blockId);  // Mark that I have received this header
-        receivedBodies.add(msg.blockId);  // Mark that I have received this body
-        validatedBodies.add(msg.blockId);  // Mark that I have validated this body
+        blockState.markHeader(msg.blockId);  // Mark that I have received this header
+        blockState.markBody(msg.blockId);  // Mark that I have received this body
+        blockState.markValidated(msg.blockId);  // Mark that I have validated this body
 
         // Stats
-        hookReceivedBody(msg.blockId, CommonState.getTime()-msg.time, msg.hops);
+        hookReceivedBody(msg.blockId, now()-msg.time, msg.hops);
 
         // Then forward header to my downstream peers
-        Message m = (Message) msg.clone();
-        m.type = MSGType.DN__RECEIVE_AND_PROCESS_HEADER;
-        m.hops++;  // forwarding downstream to the first hop!
+        Message m = msg.with(MSGType.DN__RECEIVE_AND_PROCESS_HEADER, msg.hops+1);  // forwarding downstream to the first hop!
 
-        TransportDeltaQ.setBody(false);  // Going to send header (==> SMALL)
         for (Peer peer: downstreamPeers)
-          send(peer.address, myPid(), m);
+          send(peer.address, m);
 
         break;
       }
@@ -170,27 +278,27 @@ public abstract class BaseDissemination extends Protocol implements Linkable
        *  event DO_SEND_BODY_REQUEST to be 
        */
       case DN__RECEIVE_AND_PROCESS_HEADER:
-        hookReceivedHeader(msg.blockId, CommonState.getTime()-msg.time, msg.hops, src);
+        if (context.traffic != null)
+          context.traffic.received((int) myNode().getID(), msg, blockState.hasHeader(msg.blockId));
+
+        hookReceivedHeader(msg.blockId, now()-msg.time, msg.hops, src);
 
         if (shouldRequestBody(msg.blockId))
-        //if (!receivedHeaders.contains(msg.blockId))
+        //if (!blockState.hasHeader(msg.blockId))
         {
-          receivedHeaders.add(msg.blockId);  // Mark that I received this header
+          blockState.markHeader(msg.blockId);  // Mark that I received this header
 
-          Message m = (Message) msg.clone();
           if (headerOnly)
           {
             // Assume that the body came along with the header, so proceed to forwarding it further on
-            m.type = MSGType.DN__FORWARD_NEXT_HOP;
-            m.replyTo = src;
-            schedule(header_validation_time + body_validation_time, m);
+            Message m = msg.with(MSGType.DN__FORWARD_NEXT_HOP, msg.hops);
+            schedule(header_validation_time + body_validation_time, src, m);
           }
           else
           {
             // Respond to my upstream peer requesting the body
-            m.type = MSGType.DN__SEND_BODY_REQUEST;
-            m.replyTo = src;
-            schedule(header_validation_time, m);
+            Message m = msg.with(MSGType.DN__SEND_BODY_REQUEST, msg.hops);
+            schedule(header_validation_time, src, m);
           }
         }
         break;
@@ -202,11 +310,12 @@ public abstract class BaseDissemination extends Protocol implements Linkable
        */
       case DN__SEND_BODY_REQUEST:
       {
-        Message m = (Message) msg.clone();
-        m.type = MSGType.UP__SEND_BODY;
+        Message m = msg.with(MSGType.UP__SEND_BODY, msg.hops);
+
+        if (context.coordinates != null)
+          context.coordinates.requested((int) myNode().getID(), (int) ((AddressSim) src).node.getID(), msg.blockId, now());
 
-        TransportDeltaQ.setBody(false);  // Going to send request for body (==> SMALL)
-        send(msg.replyTo, myPid(), m);
+        send(src, m);  // src is the upstream peer that sent me the header
         break;
       }
 
@@ -215,13 +324,14 @@ public abstract class BaseDissemination extends Protocol implements Linkable
        */
       case UP__SEND_BODY:
       {
-        assert receivedBodies.contains(msg.blockId): "Someone is requesting from me a body I have not received!";
+        assert blockState.hasBody(msg.blockId): "Someone is requesting from me a body I have not received!";
+
+        if (context.traffic != null)
+          context.traffic.received((int) myNode().getID(), msg, false);
 
-        Message m = (Message) msg.clone();
-        m.type = MSGType.DN__RECEIVE_AND_PROCESS_BODY;
+        Message m = msg.with(MSGType.DN__RECEIVE_AND_PROCESS_BODY, msg.hops);
 
-        TransportDeltaQ.setBody(true);  // Going to send body (==> LARGE)
-        send(src, myPid(), m);
+        send(src, m);
         break;
       }
 
@@ -233,15 +343,18 @@ public abstract class BaseDissemination extends Protocol implements Linkable
        */
       case DN__RECEIVE_AND_PROCESS_BODY:
       {
-        //assert !receivedBodies.contains(msg.blockId): "I shouldn't have received this block body for a second time!";
+        //assert !blockState.hasBody(msg.blockId): "I shouldn't have received this block body for a second time!";
 
-        receivedBodies.add(msg.blockId);  // Mark that I have received this body
+        if (context.traffic != null)
+          context.traffic.received((int) myNode().getID(), msg, blockState.hasBody(msg.blockId));
+        if (context.coordinates != null)
+          context.coordinates.received((int) myNode().getID(), (int) ((AddressSim) src).node.getID(), msg.blockId, now());
 
-        Message m = (Message) msg.clone();
-        m.type = MSGType.DN__FORWARD_NEXT_HOP;
-        m.replyTo = src;
+        blockState.markBody(msg.blockId);  // Mark that I have received this body
 
-        schedule(body_validation_time, m);
+        Message m = msg.with(MSGType.DN__FORWARD_NEXT_HOP, msg.hops);
+
+        schedule(body_validation_time, src, m);
         break;
       }
 
@@ -253,25 +366,22 @@ public abstract class BaseDissemination extends Protocol implements Linkable
       {
 //        long timeSinceBlockGeneration = CommonState.getTime() % cycle; // Quick & dirty way to estimate relative time
 //        Stats.reportDelivery(msg.blockId, timeSinceBlockGeneration, msg.hops);
-//        System.out.println(timeSinceBlockGeneration+"\t"+msg.replyTo+" -> "+myNode().getID());
+//        System.out.println(timeSinceBlockGeneration+"\t"+src+" -> "+myNode().getID());
 
 
         // Stats
-        if (!validatedBodies.contains(msg.blockId))
+        if (!blockState.isValidated(msg.blockId))
         {
-          hookReceivedBody(msg.blockId, CommonState.getTime()-msg.time, msg.hops);
-          validatedBodies.add(msg.blockId);  // Mark that I have validated this body
+          hookReceivedBody(msg.blockId, now()-msg.time, msg.hops);
+          blockState.markValidated(msg.blockId);  // Mark that I have validated this body
 
-          Message m = (Message) msg.clone();
-          m.type = MSGType.DN__RECEIVE_AND_PROCESS_HEADER;
-          m.hops++;  // forwarding downstream to the next hop!
+          Message m = msg.with(MSGType.DN__RECEIVE_AND_PROCESS_HEADER, msg.hops+1);  // forwarding downstream to the next hop!
 
-          TransportDeltaQ.setBody(false);  // Going to send header (==> SMALL)
           for (Peer peer: downstreamPeers)
           {
-            if (peer.address.equals(msg.replyTo))  // do not send block back to the node that gave it to me!
+            if (peer.address.equals(src))  // do not send block back to the node that gave it to me!
               continue;
-            send(peer.address, myPid(), m);
+            send(peer.address, m);
           }
         }
 
@@ -285,16 +395,68 @@ public abstract class BaseDissemination extends Protocol implements Linkable
 
 
 
+  /**
+   * Generates block {@code blockId} on this node. If {@code threads} is
+   * positive, the block is disseminated to the end by the
+   * {@link ParallelKernel} right away, instead of through the engine.
+   */
   public void generateBlock(int blockId)
   {
-    Message msg = new Message();
-    msg.type = MSGType.UP__GENERATE_NEW_BLOCK;
-    msg.blockId = blockId;
-    msg.replyTo = null;
-    msg.hops = 0;
-    msg.time = CommonState.getTime();
-
-    processEvent(null,  msg);
+    Block block = new Block(blockId, CommonState.getTime(), bodySize);
+    Message msg = block.message(MSGType.UP__GENERATE_NEW_BLOCK, 0);
+
+    if (context.coordinates != null)
+      context.coordinates.prepare();  // before any kernel thread records samples
+
+    if (context.threads > 0)
+    {
+      if (context.kernel == null)
+        context.kernel = new ParallelKernel(context, myPid());
+      context.kernel.disseminate(myNode(), msg);
+    }
+    else
+      processEvent(null,  msg);
+  }
+
+
+
+  /**
+   * Returns the current time, that of the {@link ParallelKernel} if it is
+   * in use.
+   */
+  private long now()
+  {
+    return context.kernel == null ? CommonState.getTime() : context.kernel.time(myNode());
+  }
+
+
+
+  /**
+   * Sends {@code msg} to {@code dest}.
+   */
+  private void send(Address dest, Message msg)
+  {
+    if (context.traffic != null)
+      context.traffic.sent((int) myNode().getID(), msg);
+
+    if (context.kernel == null)
+      send(dest, myPid(), msg);
+    else
+      context.kernel.send(myNode(), dest, msg);
+  }
+
+
+
+  /**
+   * Schedules {@code event} for myself after {@code delay}, to be processed
+   * with {@code replyTo} as its source address.
+   */
+  private void schedule(long delay, Address replyTo, Message event)
+  {
+    if (context.kernel == null)
+      localEvents.schedule(delay, replyTo, myNode(), myPid(), event);
+    else
+      context.kernel.schedule(myNode(), delay, replyTo, event);
   }
 
 
@@ -302,18 +464,11 @@ public abstract class BaseDissemination extends Protocol implements Linkable
   protected boolean shouldRequestBody(int blockId)
   {
     // First check whether I have already received this block's body.
-    if (validatedBodies.contains(blockId))  // If yes, do not request again.
+    if (blockState.isValidated(blockId))  // If yes, do not request again.
       return false;
 
     // Then, check how many times (if any) I have requested the body.
-    int numRequested = bodiesRequested.getOrDefault(blockId, 0);
-    if (numRequested < bodyRequests)
-    {
-      bodiesRequested.put(blockId, numRequested+1);
-      return true;
-    }
-    else
-      return false;
+    return blockState.requestBody(blockId, bodyRequests);
   }
 
 
@@ -332,9 +487,9 @@ public abstract class BaseDissemination extends Protocol implements Linkable
 
 
 
-  static protected BaseDissemination getDissProt(int i)
+  protected BaseDissemination getDissProt(int i)
   {
-    return ((BaseDissemination) Network.get(i).getProtocol(pid));
+    return ((BaseDissemination) Network.get(i).getProtocol(myPid()));
   }
 
 
@@ -0,0 +1,119 @@
+package base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary latency matrix file, memory-mapped rather than parsed.
+ * 
+ * The file starts with a header of {@link #HEADER_BYTES} bytes, holding
+ * (as little-endian ints) {@link #MAGIC}, {@link #VERSION}, the number of
+ * routers, the number of bytes per latency (2 or 4), and the {@code min},
+ * {@code trace_ticks_per_sec}, and {@code ticks_per_sec} the latencies were
+ * converted with. The latencies follow, row-major, as little-endian shorts
+ * or ints, in simulation ticks, with -1 for broken links.
+ * 
+ * Files are produced by {@link MatrixConverter} and loaded by {@link MatrixLoader}.
+ */
+public class BinaryMatrix extends LatencyMatrix
+{
+  static final int MAGIC = 0x4D4C4E42;  // "BNLM"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+
+  final int min;
+  final int traceTicksPerSec;
+  final int ticksPerSec;
+
+  private final ByteBuffer buffer;   // the whole file
+  private final ShortBuffer shorts;  // if 2 bytes per latency
+  private final IntBuffer ints;      // if 4 bytes per latency
+
+
+
+  private BinaryMatrix(int size, ByteBuffer buffer, ByteBuffer header, ByteBuffer data, int bytesPerLatency)
+  {
+    super(size, null);
+    this.buffer = buffer;
+    min = header.getInt(16);
+    traceTicksPerSec = header.getInt(20);
+    ticksPerSec = header.getInt(24);
+
+    if (bytesPerLatency == 2)
+    {
+      shorts = data.asShortBuffer();
+      ints = null;
+    }
+    else
+    {
+      shorts = null;
+      ints = data.asIntBuffer();
+    }
+  }
+
+
+
+  /**
+   * Maps {@code filename} in memory. The file is not read: pages are loaded
+   * by the OS as latencies are accessed, and shared among all processes
+   * mapping the same file.
+   */
+  public static BinaryMatrix map(String filename) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+    {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return wrap(buffer, filename);
+    }
+  }
+
+
+
+  /**
+   * Creates a new matrix over an already mapped file, e.g., to reuse the
+   * same mapping across simulation runs.
+   */
+  public static BinaryMatrix wrap(ByteBuffer buffer, String filename) throws IOException
+  {
+    ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (header.capacity() < HEADER_BYTES || header.getInt(0) != MAGIC)
+      throw new IOException(filename+": not a binary latency matrix");
+    if (header.getInt(4) != VERSION)
+      throw new IOException(filename+": unsupported version "+header.getInt(4));
+
+    int size = header.getInt(8);
+    int bytesPerLatency = header.getInt(12);
+    if (bytesPerLatency != 2 && bytesPerLatency != 4)
+      throw new IOException(filename+": unsupported latency width "+bytesPerLatency);
+    if (header.capacity() != HEADER_BYTES + (long) size*size*bytesPerLatency)
+      throw new IOException(filename+": truncated matrix");
+
+    ByteBuffer data = buffer.duplicate().position(HEADER_BYTES).slice().order(ByteOrder.LITTLE_ENDIAN);
+    return new BinaryMatrix(size, buffer, header, data, bytesPerLatency);
+  }
+
+
+
+  /**
+   * Returns the underlying buffer, holding the whole file.
+   */
+  ByteBuffer buffer()
+  {
+    return buffer;
+  }
+
+
+
+  @Override
+  protected int latencyAt(int index)
+  {
+    return shorts != null ? shorts.get(index) : ints.get(index);
+  }
+}
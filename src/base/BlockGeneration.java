@@ -29,7 +29,7 @@ public class BlockGeneration implements Control
    *  miners (and in the same order) are picked to generate blocks for
    *  every single experiment. 
    */
-  private static Random rng = new Random(0);
+  private final Random rng = new Random(0);
 
   public BlockGeneration(String prefix)
   {
@@ -59,7 +59,7 @@ public class BlockGeneration implements Control
 //    System.out.print("\r");
     System.out.println();
 
-    Stats.reportMiner(blockId, r);
+    d.context.reportMiner(blockId, r);
 
     // Generate a block on it
     d.generateBlock(blockId++);
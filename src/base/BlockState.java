@@ -0,0 +1,40 @@
+package base;
+
+/**
+ * Per-node record of what a node knows about each block: whether it has
+ * received its header, received its body, validated its body, and from how
+ * many upstream peers it has requested that body so far.
+ * 
+ * Implementations are selected through the {@code block_window} parameter
+ * of {@link BaseDissemination}.
+ */
+public interface BlockState
+{
+  public boolean hasHeader(int blockId);
+
+  public void markHeader(int blockId);
+
+  public boolean hasBody(int blockId);
+
+  public void markBody(int blockId);
+
+  public boolean isValidated(int blockId);
+
+  public void markValidated(int blockId);
+
+  /**
+   * Registers one more body request for {@code blockId}, unless
+   * {@code maxRequests} requests have already been made.
+   * 
+   * @param blockId
+   * @param maxRequests
+   * @return {@code True}, if the request was registered; {@code False}, if
+   *         the limit had already been reached.
+   */
+  public boolean requestBody(int blockId, int maxRequests);
+
+  /**
+   * Returns an empty instance of the same kind and capacity.
+   */
+  public BlockState copy();
+}
@@ -0,0 +1,74 @@
+package base;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Unbounded {@link BlockState}, keeping every block ever seen in hash
+ * sets. Memory grows with the number of blocks, but no assumption is made
+ * on how long a block takes to disseminate.
+ */
+public class BlockStateSet implements BlockState
+{
+  HashSet<Integer> receivedHeaders = new HashSet<>();
+  HashSet<Integer> receivedBodies = new HashSet<>();
+  HashSet<Integer> validatedBodies = new HashSet<>();
+  HashMap<Integer,Integer> bodiesRequested = new HashMap<>(); // The number of upstream peers from which I have requested this body
+
+
+
+  @Override
+  public boolean hasHeader(int blockId)
+  {
+    return receivedHeaders.contains(blockId);
+  }
+
+  @Override
+  public void markHeader(int blockId)
+  {
+    receivedHeaders.add(blockId);
+  }
+
+  @Override
+  public boolean hasBody(int blockId)
+  {
+    return receivedBodies.contains(blockId);
+  }
+
+  @Override
+  public void markBody(int blockId)
+  {
+    receivedBodies.add(blockId);
+  }
+
+  @Override
+  public boolean isValidated(int blockId)
+  {
+    return validatedBodies.contains(blockId);
+  }
+
+  @Override
+  public void markValidated(int blockId)
+  {
+    validatedBodies.add(blockId);
+  }
+
+  @Override
+  public boolean requestBody(int blockId, int maxRequests)
+  {
+    int numRequested = bodiesRequested.getOrDefault(blockId, 0);
+    if (numRequested < maxRequests)
+    {
+      bodiesRequested.put(blockId, numRequested+1);
+      return true;
+    }
+    else
+      return false;
+  }
+
+  @Override
+  public BlockState copy()
+  {
+    return new BlockStateSet();
+  }
+}
@@ -0,0 +1,146 @@
+package base;
+
+import java.util.Arrays;
+
+/**
+ * Bounded {@link BlockState}, keeping only the {@code window} most recent
+ * blocks in a ring indexed by block ID.
+ * 
+ * Each ring slot stores the ID of the block currently occupying it, a set of
+ * flag bits (header received, body received, body validated), and a byte
+ * counter of body requests. When a block {@code window} IDs newer claims a
+ * slot, the older block is retired: from then on it is reported as fully
+ * received and validated, and no more body requests are issued for it.
+ * 
+ * This is correct as long as a block has finished disseminating before the
+ * block {@code window} IDs later reaches the same node, which holds by a
+ * wide margin for block intervals much longer than dissemination times.
+ */
+public class BlockStateWindow implements BlockState
+{
+  static private final byte HEADER = 1;
+  static private final byte BODY = 2;
+  static private final byte VALIDATED = 4;
+
+  private final int mask;
+  private final int[] slotBlock;  // ID of the block occupying each slot, -1 if none
+  private final byte[] flags;
+  private final byte[] requests;
+
+
+
+  /**
+   * @param window Number of blocks kept, rounded up to a power of two.
+   */
+  public BlockStateWindow(int window)
+  {
+    int size = Integer.highestOneBit(Math.max(window, 1));
+    if (size < window)
+      size <<= 1;
+
+    mask = size-1;
+    slotBlock = new int[size];
+    flags = new byte[size];
+    requests = new byte[size];
+    Arrays.fill(slotBlock, -1);
+  }
+
+
+
+  /**
+   * Checks flag {@code bit} of {@code blockId}. A retired block has all its
+   * flags set, a block not seen yet has none.
+   */
+  private boolean has(int blockId, byte bit)
+  {
+    int slot = blockId & mask;
+    int occupant = slotBlock[slot];
+    if (occupant == blockId)
+      return (flags[slot] & bit) != 0;
+    return occupant > blockId;  // retired
+  }
+
+
+
+  /**
+   * Returns the slot of {@code blockId}, claiming it (and retiring its older
+   * occupant) if needed, or -1 if {@code blockId} has already been retired.
+   */
+  private int claim(int blockId)
+  {
+    int slot = blockId & mask;
+    int occupant = slotBlock[slot];
+    if (occupant == blockId)
+      return slot;
+    if (occupant > blockId)
+      return -1;  // retired
+
+    slotBlock[slot] = blockId;
+    flags[slot] = 0;
+    requests[slot] = 0;
+    return slot;
+  }
+
+
+
+  private void mark(int blockId, byte bit)
+  {
+    int slot = claim(blockId);
+    if (slot >= 0)
+      flags[slot] |= bit;
+  }
+
+
+
+  @Override
+  public boolean hasHeader(int blockId)
+  {
+    return has(blockId, HEADER);
+  }
+
+  @Override
+  public void markHeader(int blockId)
+  {
+    mark(blockId, HEADER);
+  }
+
+  @Override
+  public boolean hasBody(int blockId)
+  {
+    return has(blockId, BODY);
+  }
+
+  @Override
+  public void markBody(int blockId)
+  {
+    mark(blockId, BODY);
+  }
+
+  @Override
+  public boolean isValidated(int blockId)
+  {
+    return has(blockId, VALIDATED);
+  }
+
+  @Override
+  public void markValidated(int blockId)
+  {
+    mark(blockId, VALIDATED);
+  }
+
+  @Override
+  public boolean requestBody(int blockId, int maxRequests)
+  {
+    int slot = claim(blockId);
+    if (slot < 0 || requests[slot] >= Math.min(maxRequests, Byte.MAX_VALUE))
+      return false;
+    requests[slot]++;
+    return true;
+  }
+
+  @Override
+  public BlockState copy()
+  {
+    return new BlockStateWindow(mask+1);
+  }
+}
@@ -0,0 +1,104 @@
+package base;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Turns the binary deliveries written by {@link Stats} with parameter
+ * {@code binary} (see {@link DeliveryWriter}) into all of {@code Stats}'
+ * text outputs: {@code times}, {@code times.miners}, {@code times.avg},
+ * {@code times.alt}, {@code times.xavg}, {@code coverage}, {@code hops},
+ * and {@code hops.avg}.
+ *
+ * <pre>
+ * java base.DeliveryReader file.deliveries [outbase]
+ * </pre>
+ *
+ * The {@code coverage} output has the coverage percentages the simulation
+ * had, from the file's header.
+ *
+ * Outputs are named after {@code outbase}, which defaults to the file's
+ * name without {@code .deliveries}, i.e., the simulation's {@code LOGFILE}.
+ * Each execution of {@code Stats} in the simulation appends to them, as it
+ * would have. Each block's miner is taken to be the node delivering it in 0
+ * hops.
+ */
+public class DeliveryReader
+{
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 1 || args.length > 2)
+    {
+      System.err.println("Usage: java base.DeliveryReader file.deliveries [outbase]");
+      System.exit(1);
+    }
+
+    String outbase = args.length > 1 ? args[1] : args[0].replaceFirst("\\.deliveries$", "");
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1<<20)))
+    {
+      if (in.readInt() != DeliveryWriter.MAGIC || in.readInt() != DeliveryWriter.VERSION)
+        throw new IOException(args[0]+" is not a file of deliveries, version "+DeliveryWriter.VERSION);
+
+      int networkSize = in.readInt();
+      StringBuilder coverage = new StringBuilder();
+      for (int i=in.readInt(); i>0; i--)
+        coverage.append(in.readDouble()).append(' ');
+      Stats stats = new Stats(outbase, networkSize, true, coverage.toString(), "coverage");
+
+      int[] blocks = new int[0];
+      int[] nodes = new int[0];
+      int[] times = new int[0];
+      int[] hops = new int[0];
+      while (true)
+      {
+        int chunk;
+        try
+        {
+          chunk = in.readInt();
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+
+        if (chunk == DeliveryWriter.ROUND)
+          stats.print(in.readLong(), true);
+        else if (chunk == DeliveryWriter.DELIVERIES)
+        {
+          int n = in.readInt();
+          if (blocks.length < n)
+          {
+            blocks = new int[n];
+            nodes = new int[n];
+            times = new int[n];
+            hops = new int[n];
+          }
+          readColumn(in, blocks, n);
+          readColumn(in, nodes, n);
+          readColumn(in, times, n);
+          readColumn(in, hops, n);
+
+          for (int i=0; i<n; i++)
+          {
+            if (hops[i] == 0)
+              stats.miners.add(nodes[i]);
+            stats.reportDelivery(blocks[i], nodes[i], times[i], hops[i]);
+          }
+        }
+        else
+          throw new IOException("Unknown chunk "+chunk+" in "+args[0]);
+      }
+    }
+  }
+
+
+
+  private static void readColumn(DataInputStream in, int[] column, int n) throws IOException
+  {
+    for (int i=0; i<n; i++)
+      column[i] = in.readInt();
+  }
+}
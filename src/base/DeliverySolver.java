@@ -0,0 +1,300 @@
+package base;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Peer;
+import peernet.transport.Transport;
+
+/**
+ * Computes the delivery time and hops of a block at every node in a single
+ * pass over the overlay, instead of simulating each message. Meant for
+ * protocols on a static overlay that do not react to individual headers,
+ * such as {@code prot.CR}.
+ *
+ * A node u that has validated a block at time T(u) gets its body to a
+ * downstream peer v, if v asks for it, by
+ * <pre>
+ * T(u) + header(u,v) + TH + request(v,u) + body(u,v) + TB
+ * </pre>
+ * where each message's delay is computed by the {@link TransportPipeline},
+ * and v validates the block through whichever of its upstream peers is the
+ * fastest. Nodes are settled in order of time, as in Dijkstra's algorithm,
+ * along with the headers on their way. So a node asks for the body only
+ * upon its first {@code body_requests} headers, as in the simulation, and
+ * if {@code body_requests} is at least its number of upstream peers, this
+ * is exactly Dijkstra's algorithm over the above edge weights.
+ *
+ * Results are the same as simulating all messages, except for the order of
+ * simultaneous events, and for the random numbers drawn by lossy or
+ * jittery transports, which are drawn per message here too, but in
+ * another order.
+ */
+public class DeliverySolver
+{
+  static private final int LOST = -1;
+
+  private final boolean check;
+  private final Random random;  // if null, draws from CommonState.r
+
+  BaseDissemination[] protocols;
+  TransportPipeline transport;
+
+  // Solution for the current block
+  private int blockId = -1;
+  long[] time;             // of validation since the block's generation, or -1
+  int[] hops;
+  private int[] requests;  // bodies requested by each node
+  int[] order;             // nodes in order of validation
+  int reached;
+
+  // Pending events, keyed by time<<32 | event, so ties are kept in order
+  private long[] heap = new long[1024];
+  private int heapSize;
+  private int[] eventNode = new int[1024];
+  private int[] eventPeer = new int[1024];  // sender of a header, or giver of a body (-1 for the miner)
+  private int[] eventHops = new int[1024];
+  private boolean[] eventIsHeader = new boolean[1024];
+  private int events;
+
+  // Check against the simulation, for the current block
+  private int checked;     // deliveries of nodes reached by the solution
+  private int matched;
+  private int otherHops;   // of those matched
+  private int mismatched;
+  private boolean summarized = true;
+
+
+
+  /**
+   * @param check If {@code true}, the solution is only checked against the
+   *        deliveries reported to {@link #check}, drawing random numbers
+   *        from a generator of its own, so that the simulation is not
+   *        affected.
+   */
+  public DeliverySolver(boolean check)
+  {
+    this.check = check;
+    random = check ? new Random(0) : null;
+  }
+
+
+
+  void init(BaseDissemination miner)
+  {
+    Transport t = Network.get(0).getTransportByPid(miner.myPid());
+    if (!(t instanceof TransportPipeline))
+      throw new IllegalStateException("The delivery solver needs a TransportPipeline, not "+t.getClass().getName());
+    transport = (TransportPipeline) t;
+    transport.prepare(Network.get(0));
+
+    int n = Network.size();
+    protocols = new BaseDissemination[n];
+    for (int i=0; i<n; i++)
+      protocols[i] = (BaseDissemination) Network.get(i).getProtocol(miner.myPid());
+
+    time = new long[n];
+    hops = new int[n];
+    requests = new int[n];
+    order = new int[n];
+  }
+
+
+
+  /**
+   * Disseminates block {@code blockId}, generated now by {@code miner}:
+   * marks it as validated at every node it reaches, and reports each
+   * delivery, in order of time.
+   */
+  public void deliver(BaseDissemination miner, int blockId)
+  {
+    solve(miner, blockId);
+
+    for (int k=0; k<reached; k++)
+    {
+      int v = order[k];
+      BlockState state = protocols[v].blockState;
+      state.markHeader(blockId);
+      state.markBody(blockId);
+      state.markValidated(blockId);
+      protocols[v].hookReceivedBody(blockId, time[v], hops[v]);
+    }
+  }
+
+
+
+  /**
+   * Computes the delivery time and hops of block {@code blockId},
+   * generated now by {@code miner}, at every node.
+   */
+  public void solve(BaseDissemination miner, int blockId)
+  {
+    if (protocols == null)
+      init(miner);
+    if (check)
+      summarize();
+
+    this.blockId = blockId;
+    checked = matched = otherHops = mismatched = 0;
+    summarized = false;
+
+    compute(miner);
+  }
+
+
+
+  /**
+   * Fills in {@link #time}, {@link #hops}, and {@link #order} for a block
+   * generated now by {@code miner}.
+   */
+  void compute(BaseDissemination miner)
+  {
+    Arrays.fill(time, -1);
+    Arrays.fill(requests, 0);
+    reached = 0;
+    heapSize = 0;
+    events = 0;
+
+    Random r = random != null ? random : CommonState.r;
+
+    push(0, (int) miner.myNode().getID(), -1, 0, false);
+    while (heapSize > 0)
+    {
+      long key = pop();
+      long t = key >>> 32;
+      int e = (int) key;
+      int v = eventNode[e];
+      int u = eventPeer[e];
+
+      if (time[v] >= 0)  // validated already
+        continue;
+
+      if (!eventIsHeader[e])  // v validates the block, and forwards its header
+      {
+        time[v] = t;
+        hops[v] = eventHops[e];
+        order[reached++] = v;
+
+        for (Peer peer: protocols[v].downstreamPeers)
+        {
+          int w = (int) peer.getID();
+          if (w == u)  // not back to the node that gave it to me
+            continue;
+          int header = transport.delay(v, w, BaseDissemination.HEADER_SIZE, r);
+          if (header != LOST)
+            push(t+header, w, v, hops[v]+1, true);
+        }
+      }
+      else if (requests[v] < miner.bodyRequests)  // v got a header from u, and asks for the body
+      {
+        requests[v]++;
+
+        long delay = miner.header_validation_time + miner.body_validation_time;
+        if (!miner.headerOnly)
+        {
+          int request = transport.delay(v, u, BaseDissemination.REQUEST_SIZE, r);
+          if (request == LOST)
+            continue;
+          int body = transport.delay(u, v, miner.bodySize, r);
+          if (body == LOST)
+            continue;
+          delay += request + body;
+        }
+        push(t+delay, v, u, eventHops[e], false);
+      }
+    }
+  }
+
+
+
+  /**
+   * Checks a delivery of the simulation against the solution.
+   */
+  public synchronized void check(Node node, int blockId, long elapsed, int hops)
+  {
+    if (blockId != this.blockId)
+      return;
+
+    int v = (int) node.getID();
+    if (time[v] == elapsed)
+    {
+      matched++;
+      if (this.hops[v] != hops)
+        otherHops++;
+    }
+    else if (++mismatched <= 10)
+      System.err.println("Solver check: block "+blockId+" validated by node "+v+" at "+elapsed+", instead of "+time[v]);
+
+    if (time[v] >= 0 && ++checked == reached)
+      summarize();
+  }
+
+
+
+  /**
+   * Prints how the simulation of the current block compared to the
+   * solution, once all nodes reached have reported, or else when the next
+   * block is solved.
+   */
+  private void summarize()
+  {
+    if (summarized)
+      return;
+
+    System.err.println("Solver check: block "+blockId+": "+matched+" of "+reached+" deliveries as solved ("+otherHops+" over other hops), "+mismatched+" differ");
+    summarized = true;
+  }
+
+
+
+  private void push(long t, int node, int peer, int h, boolean isHeader)
+  {
+    if (events == eventNode.length)
+    {
+      int n = 2*events;
+      eventNode = Arrays.copyOf(eventNode, n);
+      eventPeer = Arrays.copyOf(eventPeer, n);
+      eventHops = Arrays.copyOf(eventHops, n);
+      eventIsHeader = Arrays.copyOf(eventIsHeader, n);
+    }
+    eventNode[events] = node;
+    eventPeer[events] = peer;
+    eventHops[events] = h;
+    eventIsHeader[events] = isHeader;
+
+    if (heapSize == heap.length)
+      heap = Arrays.copyOf(heap, 2*heapSize);
+    long key = t<<32 | events++;
+    int i = heapSize++;
+    while (i > 0 && heap[(i-1)/2] > key)
+    {
+      heap[i] = heap[(i-1)/2];
+      i = (i-1)/2;
+    }
+    heap[i] = key;
+  }
+
+
+
+  private long pop()
+  {
+    long first = heap[0];
+    long key = heap[--heapSize];
+    int i = 0;
+    while (2*i+1 < heapSize)
+    {
+      int child = 2*i+1;
+      if (child+1 < heapSize && heap[child+1] < heap[child])
+        child++;
+      if (heap[child] >= key)
+        break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = key;
+    return first;
+  }
+}
@@ -0,0 +1,559 @@
+package base;
+
+import java.util.Arrays;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Peer;
+import peernet.transport.AddressSim;
+
+/**
+ * A {@link DeliverySolver} for overlays that change over time, such as
+ * Perigee's, keeping for each miner the tree of fastest paths of its
+ * blocks. Overlay changes are reported to {@link #linkAdded} and
+ * {@link #linkRemoved}, and logged. When a miner generates its next block,
+ * its tree is brought up to date with the changes logged since, rather
+ * than computed anew:
+ * <ul>
+ * <li>the subtrees below removed tree links are detached,</li>
+ * <li>each detached node, and each node at the end of an added link, is
+ * offered the best path through its upstream peers still attached,</li>
+ * <li>and improvements are propagated in order of time, as in Dijkstra's
+ * algorithm, but only over the nodes whose path changes.</li>
+ * </ul>
+ * Repairing a tree costs in proportion to the nodes whose path changed,
+ * so a tree more than about one change per two links behind is computed
+ * anew instead.
+ *
+ * Besides the deliveries, {@link #deliver} replays every header each node
+ * receives, in order of time, to {@code hookReceivedHeader()}, so that
+ * protocols can score their peers as in the simulation.
+ *
+ * Paths are only the fastest ones if nodes ask every upstream peer for the
+ * body, so {@code body_requests} must be at least the number of upstream
+ * peers of any node, and if the transport's delays are deterministic. Both
+ * are checked. Results are then the same as simulating all messages,
+ * except for the order of simultaneous events. Trees take five ints per
+ * node and miner.
+ */
+public class DeliveryTrees extends DeliverySolver
+{
+  static private final int NONE = -1;
+  static private final int UNREACHED = Integer.MAX_VALUE;
+
+  /**
+   * Fastest paths of the blocks of one miner, as of {@link #synced}
+   * changes in the log.
+   */
+  static private final class Tree
+  {
+    final int[] time;         // of validation since generation, or UNREACHED
+    final int[] parent;       // node giving the body, or NONE
+    final int[] hops;
+    final int[] firstChild;   // children of each node, linked through nextSibling
+    final int[] nextSibling;
+    int synced;
+
+    Tree(int n)
+    {
+      time = new int[n];
+      parent = new int[n];
+      hops = new int[n];
+      firstChild = new int[n];
+      nextSibling = new int[n];
+      synced = NONE;
+    }
+  }
+
+  private Tree[] trees;
+
+  // Upstream and downstream peers of each node, as reported
+  private int[][] up;
+  private int[] numUp;
+  private int[][] down;
+  private int[] numDown;
+  private int numLinks;
+  private AddressSim[] addresses;
+
+  // Log of link changes, as from<<32 | to, negated for removals
+  private long[] log = new long[1024];
+  private int logSize;
+
+  // Scratch space for repairing a tree
+  private long[] heap = new long[1024];
+  private int heapSize;
+  private int[] detached = new int[64];
+  private int numDetached;
+  private int[] unlinked;  // equal to epoch if not in its parent's list of children
+  private int epoch;
+
+  // Headers of the current block, keyed by time<<32 | header, all three of the same length
+  private long[] headers = new long[1024];
+  private int[] headerFrom = new int[1024];
+  private int[] headerTo = new int[1024];
+
+
+
+  public DeliveryTrees(boolean check)
+  {
+    super(check);
+  }
+
+
+
+  @Override
+  void init(BaseDissemination miner)
+  {
+    super.init(miner);
+
+    if (!transport.isDeterministic())
+      throw new IllegalStateException("Delivery trees need a transport with deterministic delays");
+
+    int n = Network.size();
+    trees = new Tree[n];
+    up = new int[n][];
+    numUp = new int[n];
+    down = new int[n][];
+    numDown = new int[n];
+    addresses = new AddressSim[n];
+    unlinked = new int[n];
+
+    for (int i=0; i<n; i++)
+    {
+      up[i] = new int[8];
+      down[i] = new int[8];
+      addresses[i] = new AddressSim(Network.get(i));
+    }
+    for (int i=0; i<n; i++)
+      for (Peer peer: protocols[i].downstreamPeers)
+        link(i, (int) peer.getID());
+  }
+
+
+
+  /**
+   * Reports that {@code node} added {@code peer} to its downstream peers.
+   */
+  public void linkAdded(Node node, Peer peer)
+  {
+    if (trees == null)  // picked up by init()
+      return;
+
+    int u = (int) node.getID();
+    int v = (int) peer.getID();
+    link(u, v);
+    record((long) u<<32 | v);
+  }
+
+
+
+  /**
+   * Reports that {@code node} removed {@code peer} from its downstream peers.
+   */
+  public void linkRemoved(Node node, Peer peer)
+  {
+    if (trees == null)
+      return;
+
+    int u = (int) node.getID();
+    int v = (int) peer.getID();
+    if (remove(down, numDown, u, v) && remove(up, numUp, v, u))
+    {
+      numLinks--;
+      record(-((long) u<<32 | v));
+    }
+  }
+
+
+
+  private void link(int u, int v)
+  {
+    add(down, numDown, u, v);
+    add(up, numUp, v, u);
+    numLinks++;
+
+    if (numUp[v] > protocols[v].bodyRequests)
+      throw new IllegalStateException("Delivery trees need body_requests of at least "+numUp[v]+", the upstream peers of node "+v);
+  }
+
+
+
+  static private void add(int[][] lists, int[] sizes, int i, int value)
+  {
+    if (sizes[i] == lists[i].length)
+      lists[i] = Arrays.copyOf(lists[i], 2*sizes[i]);
+    lists[i][sizes[i]++] = value;
+  }
+
+
+
+  static private boolean remove(int[][] lists, int[] sizes, int i, int value)
+  {
+    int[] list = lists[i];
+    for (int k=0; k<sizes[i]; k++)
+    {
+      if (list[k] == value)
+      {
+        System.arraycopy(list, k+1, list, k, sizes[i]-k-1);
+        sizes[i]--;
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+
+  private boolean has(int u, int v)
+  {
+    for (int j=0; j<numDown[u]; j++)
+      if (down[u][j] == v)
+        return true;
+    return false;
+  }
+
+
+
+  /**
+   * Appends a change to the log. When the log holds as many changes as
+   * there are links, its older half is dropped, and trees not synced past
+   * it are computed anew on next use.
+   */
+  private void record(long change)
+  {
+    if (logSize == log.length)
+    {
+      if (logSize < numLinks)
+        log = Arrays.copyOf(log, 2*logSize);
+      else
+      {
+        int half = logSize/2;
+        for (Tree tree: trees)
+          if (tree != null)
+            tree.synced = tree.synced < half ? NONE : tree.synced-half;
+        System.arraycopy(log, half, log, 0, logSize-half);
+        logSize -= half;
+      }
+    }
+    log[logSize++] = change;
+  }
+
+
+
+  @Override
+  void compute(BaseDissemination miner)
+  {
+    int m = (int) miner.myNode().getID();
+    Tree tree = trees[m];
+    if (tree == null)
+      tree = trees[m] = new Tree(Network.size());
+
+    // Repairing is only cheaper than building for up to about one change per two links
+    epoch++;
+    if (tree.synced == NONE || logSize-tree.synced > numLinks/2)
+      build(tree, m);
+    else
+      repair(tree);
+    tree.synced = logSize;
+
+    // Copy the tree out, nodes sorted by time
+    if (headers.length < tree.time.length)
+      growHeaders(tree.time.length);
+    reached = 0;
+    for (int v=0; v<tree.time.length; v++)
+    {
+      if (tree.time[v] == UNREACHED)
+        time[v] = -1;
+      else
+      {
+        time[v] = tree.time[v];
+        hops[v] = tree.hops[v];
+        headers[reached++] = (long) tree.time[v]<<32 | v;  // borrowed for sorting
+      }
+    }
+    Arrays.sort(headers, 0, reached);
+    for (int k=0; k<reached; k++)
+      order[k] = (int) headers[k];
+  }
+
+
+
+  /**
+   * Computes the tree of {@code miner} anew.
+   */
+  private void build(Tree tree, int miner)
+  {
+    Arrays.fill(tree.time, UNREACHED);
+    Arrays.fill(tree.parent, NONE);
+    Arrays.fill(tree.firstChild, NONE);
+
+    tree.time[miner] = 0;
+    tree.hops[miner] = 0;
+    heapSize = 0;
+    push(0, miner);
+    propagate(tree);
+  }
+
+
+
+  /**
+   * Brings {@code tree} up to date with the changes logged since it was
+   * last synced.
+   */
+  private void repair(Tree tree)
+  {
+    heapSize = 0;
+    numDetached = 0;
+
+    // Detach the subtrees below removed links
+    for (int i=tree.synced; i<logSize; i++)
+    {
+      if (log[i] >= 0)
+        continue;
+      int u = (int) (-log[i] >>> 32);
+      int v = (int) -log[i];
+      if (tree.parent[v] == u && tree.time[v] != UNREACHED)
+      {
+        unlink(tree, v);
+        detach(tree, v);
+      }
+    }
+
+    // Offer each detached node its best path through attached upstream peers
+    for (int k=0; k<numDetached; k++)
+    {
+      int v = detached[k];
+      for (int j=0; j<numUp[v]; j++)
+        offer(tree, up[v][j], v);
+    }
+
+    // and the end of each added link its path over it
+    for (int i=tree.synced; i<logSize; i++)
+    {
+      int u = (int) (log[i] >>> 32);
+      int v = (int) log[i];
+      if (log[i] >= 0 && has(u, v))
+        offer(tree, u, v);
+    }
+
+    propagate(tree);
+  }
+
+
+
+  /**
+   * Marks {@code root} and all nodes below it as unreached, collecting them
+   * in {@link #detached}.
+   */
+  private void detach(Tree tree, int root)
+  {
+    int start = numDetached;
+    addDetached(root);
+    for (int k=start; k<numDetached; k++)
+    {
+      int v = detached[k];
+      for (int c=tree.firstChild[v]; c!=NONE; c=tree.nextSibling[c])
+        addDetached(c);
+      tree.time[v] = UNREACHED;
+      tree.parent[v] = NONE;
+      tree.firstChild[v] = NONE;
+      unlinked[v] = epoch;
+    }
+  }
+
+
+
+  private void addDetached(int v)
+  {
+    if (numDetached == detached.length)
+      detached = Arrays.copyOf(detached, 2*numDetached);
+    detached[numDetached++] = v;
+  }
+
+
+
+  /**
+   * Offers node {@code v} the path through its upstream peer {@code u}, if
+   * it is faster.
+   */
+  private void offer(Tree tree, int u, int v)
+  {
+    if (tree.time[u] == UNREACHED)
+      return;
+
+    long t = tree.time[u] + weight(u, v);
+    if (t >= tree.time[v] || t >= UNREACHED)
+      return;
+
+    if (tree.time[v] != UNREACHED && tree.parent[v] != NONE && unlinked[v] != epoch)
+      unlink(tree, v);
+    tree.time[v] = (int) t;
+    tree.parent[v] = u;
+    tree.hops[v] = tree.hops[u]+1;
+    unlinked[v] = epoch;
+    push(t, v);
+  }
+
+
+
+  /**
+   * Settles queued nodes in order of time, linking each to its parent, and
+   * offering its downstream peers the paths through it.
+   */
+  private void propagate(Tree tree)
+  {
+    while (heapSize > 0)
+    {
+      long key = pop();
+      int v = (int) key;
+      if (key>>>32 != tree.time[v])  // superseded
+        continue;
+
+      int p = tree.parent[v];
+      if (p != NONE)
+      {
+        tree.nextSibling[v] = tree.firstChild[p];
+        tree.firstChild[p] = v;
+      }
+      unlinked[v] = 0;
+
+      for (int j=0; j<numDown[v]; j++)
+        if (down[v][j] != p)  // not back to the node that gave it to me
+          offer(tree, v, down[v][j]);
+    }
+  }
+
+
+
+  /**
+   * Removes {@code v} from its parent's children.
+   */
+  private void unlink(Tree tree, int v)
+  {
+    int p = tree.parent[v];
+    if (tree.firstChild[p] == v)
+      tree.firstChild[p] = tree.nextSibling[v];
+    else
+    {
+      int c = tree.firstChild[p];
+      while (tree.nextSibling[c] != v)
+        c = tree.nextSibling[c];
+      tree.nextSibling[c] = tree.nextSibling[v];
+    }
+    unlinked[v] = epoch;
+  }
+
+
+
+  /**
+   * Time from node {@code u} validating a block to its downstream peer
+   * {@code v} validating it through {@code u}.
+   */
+  private long weight(int u, int v)
+  {
+    BaseDissemination prot = protocols[v];
+    int header = transport.delay(u, v, BaseDissemination.HEADER_SIZE, CommonState.r);
+    if (header < 0)
+      return UNREACHED;
+
+    long delay = header + prot.header_validation_time + prot.body_validation_time;
+    if (!prot.headerOnly)
+    {
+      int request = transport.delay(v, u, BaseDissemination.REQUEST_SIZE, CommonState.r);
+      int body = transport.delay(u, v, prot.bodySize, CommonState.r);
+      if (request < 0 || body < 0)
+        return UNREACHED;
+      delay += request + body;
+    }
+    return delay;
+  }
+
+
+
+  /**
+   * Delivers the block as {@link DeliverySolver#deliver} does, and then
+   * replays, in order of time, each header sent by a node upon validating
+   * the block, to its recipient's {@code hookReceivedHeader()}.
+   */
+  @Override
+  public void deliver(BaseDissemination miner, int blockId)
+  {
+    super.deliver(miner, blockId);
+
+    Tree tree = trees[(int) miner.myNode().getID()];
+    int count = 0;
+    for (int k=0; k<reached; k++)
+    {
+      int u = order[k];
+      for (int j=0; j<numDown[u]; j++)
+      {
+        int v = down[u][j];
+        if (v == tree.parent[u])
+          continue;
+
+        if (count == headers.length)
+          growHeaders(2*count);
+        long t = time[u] + transport.delay(u, v, BaseDissemination.HEADER_SIZE, CommonState.r);
+        headerFrom[count] = u;
+        headerTo[count] = v;
+        headers[count] = t<<32 | count;
+        count++;
+      }
+    }
+
+    Arrays.sort(headers, 0, count);
+    for (int k=0; k<count; k++)
+    {
+      int i = (int) headers[k];
+      int u = headerFrom[i];
+      protocols[headerTo[i]].hookReceivedHeader(blockId, headers[k]>>>32, hops[u]+1, addresses[u]);
+    }
+  }
+
+
+
+  private void growHeaders(int length)
+  {
+    headers = Arrays.copyOf(headers, length);
+    headerFrom = Arrays.copyOf(headerFrom, length);
+    headerTo = Arrays.copyOf(headerTo, length);
+  }
+
+
+
+  private void push(long t, int v)
+  {
+    if (heapSize == heap.length)
+      heap = Arrays.copyOf(heap, 2*heapSize);
+    long key = t<<32 | v;
+    int i = heapSize++;
+    while (i > 0 && heap[(i-1)/2] > key)
+    {
+      heap[i] = heap[(i-1)/2];
+      i = (i-1)/2;
+    }
+    heap[i] = key;
+  }
+
+
+
+  private long pop()
+  {
+    long first = heap[0];
+    long key = heap[--heapSize];
+    int i = 0;
+    while (2*i+1 < heapSize)
+    {
+      int child = 2*i+1;
+      if (child+1 < heapSize && heap[child+1] < heap[child])
+        child++;
+      if (heap[child] >= key)
+        break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = key;
+    return first;
+  }
+}
@@ -0,0 +1,240 @@
+package base;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the deliveries reported to {@link Stats} between two of its
+ * executions to a binary file, from a thread of its own, so that the
+ * simulation does not wait on the disk. See {@link DeliveryReader} for
+ * turning the file into {@code Stats}' text outputs.
+ *
+ * Deliveries are collected in batches of columns (block IDs, node IDs,
+ * times, and hops), and handed over to the writer thread, which writes
+ * each batch through a direct buffer. At most {@value #QUEUE} batches wait
+ * to be written, beyond which the simulation waits for the writer.
+ *
+ * The file starts with a header:
+ * <pre>
+ * int MAGIC, int VERSION, int network size, int count, double[count] coverage percentages
+ * </pre>
+ * followed by any number of chunks, all numbers big-endian:
+ * <pre>
+ * int DELIVERIES, int count, int[count] blocks, int[count] nodes, int[count] times, int[count] hops
+ * int ROUND, long time  (an execution of Stats, ending the deliveries since the previous one)
+ * </pre>
+ */
+public class DeliveryWriter
+{
+  static final int MAGIC = 0x424c4b44;  // "BLKD"
+  static final int VERSION = 2;
+  static final int DELIVERIES = 1;
+  static final int ROUND = 2;
+
+  static private final int BATCH = 1<<16;  // deliveries
+  static private final int QUEUE = 4;      // batches
+
+  static private final class Batch
+  {
+    final int[] blocks = new int[BATCH];
+    final int[] nodes = new int[BATCH];
+    final int[] times = new int[BATCH];
+    final int[] hops = new int[BATCH];
+    int size;
+    long roundTime = -1;  // if non-negative, ends the round instead
+  }
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(8 + 16*BATCH);
+  private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(QUEUE);
+  private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(QUEUE+2);
+  private int batches = 0;
+  private Batch current;
+
+  private final Thread thread;
+  private volatile IOException failure;
+
+
+
+  /**
+   * Opens {@code filename}, starting it with a header unless appending to it.
+   */
+  DeliveryWriter(String filename, boolean append, int networkSize, double[] coverage) throws IOException
+  {
+    channel = new FileOutputStream(filename, append).getChannel();
+    if (!append)
+    {
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(networkSize).putInt(coverage.length);
+      for (double c: coverage)
+        buffer.putDouble(c);
+      write();
+    }
+
+    thread = new Thread(this::run, "DeliveryWriter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+
+  /**
+   * Adds a delivery, or throws the writer's failure, if any.
+   */
+  void add(int blockId, int nodeId, long time, int hops)
+  {
+    if (failure != null)
+      throw new UncheckedIOException(failure);
+
+    if (current == null)
+      current = freeBatch();
+
+    int i = current.size++;
+    current.blocks[i] = blockId;
+    current.nodes[i] = nodeId;
+    current.times[i] = Math.toIntExact(time);
+    current.hops[i] = hops;
+
+    if (current.size == BATCH)
+    {
+      put(current);
+      current = null;
+    }
+  }
+
+
+
+  /**
+   * Ends the round at {@code time}, waits for all of it to be written, and
+   * closes the file.
+   */
+  void close(long time) throws IOException
+  {
+    if (current != null)
+      put(current);
+    current = freeBatch();
+    current.roundTime = time;
+    put(current);
+    current = null;
+
+    try
+    {
+      thread.join();
+    }
+    catch (InterruptedException e)
+    {
+      throw new IllegalStateException("Interrupted while writing deliveries", e);
+    }
+    channel.close();
+
+    if (failure != null)
+      throw failure;
+  }
+
+
+
+  private Batch freeBatch()
+  {
+    Batch b = free.poll();
+    if (b == null && batches < QUEUE+2)
+    {
+      batches++;
+      return new Batch();
+    }
+
+    try
+    {
+      return b != null ? b : free.take();
+    }
+    catch (InterruptedException e)
+    {
+      throw new IllegalStateException("Interrupted while writing deliveries", e);
+    }
+  }
+
+
+
+  private void put(Batch b)
+  {
+    try
+    {
+      full.put(b);
+    }
+    catch (InterruptedException e)
+    {
+      throw new IllegalStateException("Interrupted while writing deliveries", e);
+    }
+  }
+
+
+
+  /**
+   * Run by the writer thread, until the end of the round. After a failure,
+   * it goes on taking batches, so that the simulation does not block.
+   */
+  private void run()
+  {
+    while (true)
+    {
+      Batch b;
+      try
+      {
+        b = full.take();
+      }
+      catch (InterruptedException e)
+      {
+        failure = new IOException("Delivery writer interrupted", e);
+        return;
+      }
+
+      try
+      {
+        if (failure == null)
+        {
+          if (b.roundTime >= 0)
+            buffer.putInt(ROUND).putLong(b.roundTime);
+          else
+          {
+            buffer.putInt(DELIVERIES).putInt(b.size);
+            putColumn(b.blocks, b.size);
+            putColumn(b.nodes, b.size);
+            putColumn(b.times, b.size);
+            putColumn(b.hops, b.size);
+          }
+          write();
+        }
+      }
+      catch (IOException e)
+      {
+        failure = e;
+      }
+
+      if (b.roundTime >= 0)
+        return;
+      b.size = 0;
+      free.add(b);
+    }
+  }
+
+
+
+  private void putColumn(int[] column, int size)
+  {
+    buffer.asIntBuffer().put(column, 0, size);
+    buffer.position(buffer.position() + 4*size);
+  }
+
+
+
+  private void write() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+}
@@ -0,0 +1,53 @@
+package base;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.CalendarHeap;
+import peernet.core.Control;
+
+/**
+ * Initializer selecting the engine's event queue. With {@code type heap}
+ * (the default) it keeps peernet's binary heap, and with
+ * {@code type calendar} it installs a {@link CalendarHeap} of
+ * {@code buckets} milliseconds (default 2048), which should exceed most
+ * delays between scheduling and firing an event:
+ *
+ * <pre>
+ * init.queue               EventQueue
+ * {
+ *   type                   calendar
+ *   buckets                2048
+ * }
+ * </pre>
+ *
+ * See {@link peernet.core.HeapBenchmark} to compare the two on a workload.
+ */
+public class EventQueue implements Control
+{
+  private static final String PAR_TYPE = "type";
+  private static final String PAR_BUCKETS = "buckets";
+
+  private final String type;
+  private final int buckets;
+
+
+
+  public EventQueue(String prefix)
+  {
+    type = Configuration.getString(prefix+"."+PAR_TYPE, "heap");
+    buckets = Configuration.getInt(prefix+"."+PAR_BUCKETS, 2048);
+
+    if (!type.equals("heap") && !type.equals("calendar"))
+      throw new IllegalParameterException(prefix+"."+PAR_TYPE, "Unknown event queue: "+type);
+  }
+
+
+
+  @Override
+  public boolean execute()
+  {
+    if (type.equals("calendar"))
+      CalendarHeap.install(buckets);
+    return false;
+  }
+}
@@ -0,0 +1,152 @@
+package base;
+
+import java.util.Arrays;
+
+/**
+ * Counts of non-negative values, bucketed as in HdrHistogram: values below
+ * 2^{@value #PRECISION} have a bucket each, and larger ones share
+ * logarithmic buckets of 2^({@value #PRECISION}-1) per power of two, so
+ * they are kept to a relative precision of 2^-({@value #PRECISION}-1).
+ * Used by {@link Stats} for delivery times in msec, which are thus exact
+ * below about a minute.
+ *
+ * Buckets are allocated up to the largest value added so far.
+ */
+public class Histogram
+{
+  static private final int PRECISION = 16;
+  static private final int LINEAR = 1<<PRECISION;
+
+  private long[] counts = new long[0];
+  private int end = 0;  // past the last non-empty bucket
+  private long total = 0;
+
+
+
+  /**
+   * Returns the bucket of {@code value}, for buckets of {@code precision}
+   * bits, as described above.
+   */
+  static int index(long value, int precision)
+  {
+    int linear = 1<<precision;
+    if (value < linear)
+      return (int) value;
+
+    int half = linear/2;
+    int shift = 64 - Long.numberOfLeadingZeros(value) - precision;
+    return linear + (shift-1)*half + (int) (value>>shift) - half;
+  }
+
+
+
+  /**
+   * Returns the lowest value of bucket {@code i}, for buckets of
+   * {@code precision} bits.
+   */
+  static long value(int i, int precision)
+  {
+    int linear = 1<<precision;
+    if (i < linear)
+      return i;
+
+    int half = linear/2;
+    int shift = (i-linear)/half + 1;
+    return (long) ((i-linear)%half + half) << shift;
+  }
+
+
+
+  /**
+   * Returns the lowest value of bucket {@code i}.
+   */
+  public static long value(int i)
+  {
+    return value(i, PRECISION);
+  }
+
+
+
+  public void add(long value)
+  {
+    add(value, 1);
+  }
+
+
+
+  public void add(long value, long count)
+  {
+    assert value >= 0: "Negative value "+value;
+
+    int i = index(value, PRECISION);
+    if (i >= counts.length)
+      counts = Arrays.copyOf(counts, Math.max(i+1, Math.min(2*counts.length, LINEAR+32*LINEAR)));
+    counts[i] += count;
+    end = Math.max(end, i+1);
+    total += count;
+  }
+
+
+
+  /**
+   * Adds all counts of {@code other} to mine.
+   */
+  public void add(Histogram other)
+  {
+    for (int i=0; i<other.end; i++)
+      if (other.counts[i] > 0)
+        add(value(i), other.counts[i]);
+  }
+
+
+
+  /**
+   * Returns the number of buckets, up to the last non-empty one. Bucket
+   * {@code i} counts the values from {@link #value}(i) up to
+   * {@link #value}(i+1), exclusive.
+   */
+  public int buckets()
+  {
+    return end;
+  }
+
+
+
+  public long count(int i)
+  {
+    return counts[i];
+  }
+
+
+
+  public long total()
+  {
+    return total;
+  }
+
+
+
+  /**
+   * Returns the value of rank {@code rank} (from 0) in ascending order, to
+   * the precision of its bucket, or -1 if there are not as many values.
+   */
+  public long valueAt(long rank)
+  {
+    for (int i=0; i<end; i++)
+    {
+      rank -= counts[i];
+      if (rank < 0)
+        return value(i);
+    }
+    return -1;
+  }
+
+
+
+  public void clear()
+  {
+    Arrays.fill(counts, 0, end, 0);
+    end = 0;
+    total = 0;
+  }
+}
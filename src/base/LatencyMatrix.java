@@ -0,0 +1,167 @@
+package base;
+
+import peernet.core.Network;
+import peernet.transport.RouterNetwork;
+
+/**
+ * Flat cache of the router latency matrix, shared by initializers and
+ * transports.
+ * 
+ * Latencies are copied once from {@link RouterNetwork} (after it has been
+ * loaded, e.g., by {@code MatrixParser}) into a single row-major array.
+ * Together with a precomputed node-to-router mapping, the one-way latency
+ * between two nodes is then a couple of array loads, instead of two modulo
+ * operations and a lookup in a two-dimensional array.
+ * 
+ * Node {@code i} is mapped to router {@code i % routers()}, as everywhere else.
+ */
+public class LatencyMatrix
+{
+  static private LatencyMatrix instance;
+
+  protected final int size;      // number of routers
+  private final int[] latencies; // row-major, latencies[a*size+b] is the latency from router a to b (null if not on heap)
+
+  private int[] routerOf;        // router index of each node
+  private int[] rowOf;           // routerOf[i]*size, the offset of node i's row
+
+
+
+  /**
+   * Returns the shared matrix, building it from {@link RouterNetwork} on
+   * first use.
+   */
+  public static LatencyMatrix get()
+  {
+    if (instance == null)
+      instance = fromRouterNetwork();
+    return instance;
+  }
+
+
+
+  /**
+   * Makes {@code matrix} the shared matrix.
+   */
+  public static void install(LatencyMatrix matrix)
+  {
+    instance = matrix;
+  }
+
+
+
+  /**
+   * Drops the shared matrix, so that it is rebuilt from {@link RouterNetwork}
+   * on next use.
+   */
+  public static void reset()
+  {
+    instance = null;
+  }
+
+
+
+  private static LatencyMatrix fromRouterNetwork()
+  {
+    int size = RouterNetwork.getSize();
+    int[] latencies = new int[size*size];
+    for (int a=0; a<size; a++)
+      for (int b=0; b<size; b++)
+        latencies[a*size+b] = RouterNetwork.getLatency(a, b);
+    return new LatencyMatrix(size, latencies);
+  }
+
+
+
+  /**
+   * @param size Number of routers
+   * @param latencies Row-major latencies, or {@code null} if a subclass
+   *        overrides {@link #latencyAt(int)}
+   */
+  protected LatencyMatrix(int size, int[] latencies)
+  {
+    assert size > 0: "Empty latency matrix. Has it been loaded?";
+    this.size = size;
+    this.latencies = latencies;
+    mapNodes(Network.size());
+  }
+
+
+
+  /**
+   * Precomputes the router of nodes {@code 0} to {@code nodes-1}.
+   */
+  private void mapNodes(int nodes)
+  {
+    routerOf = new int[nodes];
+    rowOf = new int[nodes];
+    for (int i=0; i<nodes; i++)
+    {
+      routerOf[i] = i % size;
+      rowOf[i] = routerOf[i] * size;
+    }
+  }
+
+
+
+  public int routers()
+  {
+    return size;
+  }
+
+
+
+  /**
+   * Returns the router index of node {@code node}.
+   */
+  public int router(int node)
+  {
+    if (node >= routerOf.length)
+      mapNodes(Math.max(node+1, 2*routerOf.length));
+    return routerOf[node];
+  }
+
+
+
+  /**
+   * Returns the latency at position {@code index} of the row-major matrix.
+   */
+  protected int latencyAt(int index)
+  {
+    return latencies[index];
+  }
+
+
+
+  /**
+   * Returns the one-way latency from router {@code a} to router {@code b},
+   * or a negative value if there is no link.
+   */
+  public int latency(int a, int b)
+  {
+    return latencyAt(a*size + b);
+  }
+
+
+
+  /**
+   * Returns the one-way latency from node {@code i} to node {@code j}.
+   */
+  public int nodeLatency(int i, int j)
+  {
+    if (i >= rowOf.length || j >= rowOf.length)
+      return latency(router(i), router(j));
+    return latencyAt(rowOf[i] + routerOf[j]);
+  }
+
+
+
+  /**
+   * Returns the round-trip time between nodes {@code i} and {@code j},
+   * which is the same in both directions.
+   */
+  public int nodeRtt(int i, int j)
+  {
+    return nodeLatency(i, j) + nodeLatency(j, i);
+  }
+}
@@ -0,0 +1,118 @@
+package base;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.StringTokenizer;
+
+/**
+ * Converts a text latency matrix, as read by peernet's {@code MatrixParser},
+ * into a {@link BinaryMatrix} file.
+ * 
+ * Latencies are converted exactly as {@code MatrixParser} does: negative
+ * values become -1 (broken link), others are raised to {@code min} and
+ * scaled by {@code ticks_per_sec/trace_ticks_per_sec}. These parameters are
+ * recorded in the binary file. As in {@code RouterNetwork}, the latency from
+ * a router to itself is 0.
+ * 
+ * Usage:
+ * <pre>
+ * java base.MatrixConverter in.dat out.bin [min [trace_ticks_per_sec ticks_per_sec]]
+ * </pre>
+ */
+public class MatrixConverter
+{
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 2 && args.length != 3 && args.length != 5)
+    {
+      System.err.println("Usage: java base.MatrixConverter in.dat out.bin [min [trace_ticks_per_sec ticks_per_sec]]");
+      System.exit(1);
+    }
+
+    int min = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+    int traceTicksPerSec = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+    int ticksPerSec = args.length > 3 ? Integer.parseInt(args[4]) : 1000;
+
+    convert(args[0], args[1], min, traceTicksPerSec, ticksPerSec);
+  }
+
+
+
+  public static void convert(String in, String out, int min, int traceTicksPerSec, int ticksPerSec) throws IOException
+  {
+    double ratio = ticksPerSec / (double) traceTicksPerSec;
+
+    try (BufferedReader reader = new BufferedReader(new FileReader(in), 1<<20))
+    {
+      int size = Integer.parseInt(reader.readLine().trim());
+
+      // Parse into ints first, to decide on the width of latencies.
+      int[] latencies = new int[size*size];
+      int maxLatency = 0;
+      int k = 0;
+      for (int a=0; a<size; a++)
+      {
+        String line = reader.readLine();
+        if (line == null)
+          throw new IOException(in+": expected "+size+" rows, found "+a);
+
+        StringTokenizer tokens = new StringTokenizer(line, " \t");
+        for (int b=0; b<size; b++)
+        {
+          double value = Double.parseDouble(tokens.nextToken());
+          int latency;
+          if (a == b)
+            latency = 0;
+          else
+            latency = value < 0 ? -1 : (int) (Math.max(value, min) * ratio);
+          latencies[k++] = latency;
+          maxLatency = Math.max(maxLatency, latency);
+        }
+      }
+
+      int bytesPerLatency = maxLatency <= Short.MAX_VALUE ? 2 : 4;
+      write(out, size, latencies, bytesPerLatency, min, traceTicksPerSec, ticksPerSec);
+
+      System.err.println(out+": "+size+"x"+size+" routers, "+bytesPerLatency+" bytes per latency");
+    }
+  }
+
+
+
+  private static void write(String out, int size, int[] latencies, int bytesPerLatency,
+                            int min, int traceTicksPerSec, int ticksPerSec) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(out), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      ByteBuffer header = ByteBuffer.allocate(BinaryMatrix.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(BinaryMatrix.MAGIC).putInt(BinaryMatrix.VERSION).putInt(size).putInt(bytesPerLatency);
+      header.putInt(min).putInt(traceTicksPerSec).putInt(ticksPerSec);
+      header.clear();
+      channel.write(header);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1<<20).order(ByteOrder.LITTLE_ENDIAN);
+      for (int latency: latencies)
+      {
+        if (buffer.remaining() < bytesPerLatency)
+        {
+          buffer.flip();
+          channel.write(buffer);
+          buffer.clear();
+        }
+        if (bytesPerLatency == 2)
+          buffer.putShort((short) latency);
+        else
+          buffer.putInt(latency);
+      }
+      buffer.flip();
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.Control;
+
+/**
+ * Initializer memory-mapping a {@link BinaryMatrix} file and installing it
+ * as the shared {@link LatencyMatrix}. Can be used in place of
+ * {@code MatrixParser}, with a file produced by {@link MatrixConverter}:
+ * 
+ * <pre>
+ * init.latencies_matrix    MatrixLoader
+ * {
+ *   file                   latencies/matrix.bin
+ * }
+ * </pre>
+ * 
+ * Latencies are converted to ticks when the file is produced. Parameters
+ * {@code min}, {@code trace_ticks_per_sec}, and {@code ticks_per_sec} are
+ * therefore optional, and only checked against the ones in the file.
+ * 
+ * Note that {@code RouterNetwork} is not populated.
+ */
+public class MatrixLoader implements Control
+{
+  private static final String PAR_FILE = "file";
+  private static final String PAR_MIN_LATENCY = "min";
+  private static final String PAR_TRACE_TICKS_PER_SEC = "trace_ticks_per_sec";
+  private static final String PAR_SIM_TICKS_PER_SEC = "ticks_per_sec";
+
+  // Files already mapped in this JVM, to be reused by later runs.
+  private static final HashMap<String,ByteBuffer> mapped = new HashMap<>();
+
+  private final String prefix;
+  private final String filename;
+
+
+
+  public MatrixLoader(String prefix)
+  {
+    this.prefix = prefix;
+    filename = Configuration.getString(prefix+"."+PAR_FILE);
+  }
+
+
+
+  private void check(String parameter, int valueInFile)
+  {
+    String name = prefix+"."+parameter;
+    if (Configuration.contains(name) && Configuration.getInt(name) != valueInFile)
+      throw new IllegalParameterException(name, filename+" was converted with "+parameter+"="+valueInFile);
+  }
+
+
+
+  @Override
+  public boolean execute()
+  {
+    try
+    {
+      BinaryMatrix matrix;
+      synchronized (mapped)
+      {
+        ByteBuffer buffer = mapped.get(filename);
+        if (buffer == null)
+        {
+          matrix = BinaryMatrix.map(filename);
+          mapped.put(filename, matrix.buffer());
+        }
+        else
+          matrix = BinaryMatrix.wrap(buffer, filename);
+      }
+
+      check(PAR_MIN_LATENCY, matrix.min);
+      check(PAR_TRACE_TICKS_PER_SEC, matrix.traceTicksPerSec);
+      check(PAR_SIM_TICKS_PER_SEC, matrix.ticksPerSec);
+
+      LatencyMatrix.install(matrix);
+      System.err.println("MatrixLoader: mapped "+filename+", "+matrix.routers()+" routers");
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e.getMessage());
+    }
+    return false;
+  }
+}
@@ -0,0 +1,118 @@
+package base;
+
+import java.util.Arrays;
+
+/**
+ * Delivery times of blocks to each node, to find the nodes that receive
+ * blocks late. Used by {@link Stats} with parameter {@code slowest}.
+ *
+ * Each node keeps the sum and number of its delivery times, for their
+ * average, and a coarse histogram of them, for their quantiles. Buckets
+ * are those of {@link Histogram} with a precision of {@value #PRECISION}
+ * bits, i.e., within 2^-({@value #PRECISION}-1) of their values, up to
+ * {@value #MAX_TIME} msec, beyond which times count in the last bucket. All
+ * histograms share a single array, so that a node costs under 600 bytes,
+ * and no objects.
+ */
+class NodeProfile
+{
+  static private final int PRECISION = 4;
+  static private final long MAX_TIME = 1L<<20;
+  static private final int BUCKETS = Histogram.index(MAX_TIME, PRECISION) + 1;
+
+  private final long[] sums;
+  private final int[] counts;
+  private final int[] buckets;  // node i's histogram at i*BUCKETS
+
+
+
+  NodeProfile(int networkSize)
+  {
+    sums = new long[networkSize];
+    counts = new int[networkSize];
+    buckets = new int[networkSize*BUCKETS];
+  }
+
+
+
+  void add(int node, long time)
+  {
+    sums[node] += time;
+    counts[node]++;
+    buckets[node*BUCKETS + Histogram.index(Math.min(time, MAX_TIME), PRECISION)]++;
+  }
+
+
+
+  int count(int node)
+  {
+    return counts[node];
+  }
+
+
+
+  /**
+   * Returns the average delivery time of {@code node}, or -1 if none.
+   */
+  double average(int node)
+  {
+    return counts[node] == 0 ? -1 : sums[node] / (double) counts[node];
+  }
+
+
+
+  /**
+   * Returns the delivery time of {@code node} at {@code percentile}, to the
+   * precision of its bucket, or -1 if none.
+   */
+  long percentile(int node, int percentile)
+  {
+    if (counts[node] == 0)
+      return -1;
+
+    long rank = (long) Math.ceil(counts[node] * percentile / 100.0) - 1;
+    for (int i=0; i<BUCKETS; i++)
+    {
+      rank -= buckets[node*BUCKETS + i];
+      if (rank < 0)
+        return Histogram.value(i, PRECISION);
+    }
+    return -1;
+  }
+
+
+
+  /**
+   * Returns the (up to) {@code k} nodes with the highest average delivery
+   * time, in decreasing order of it. Nodes without deliveries are left out.
+   */
+  int[] slowest(int k)
+  {
+    int[] nodes = new int[Math.min(k, counts.length)];
+    int n = 0;
+    for (int node=0; node<counts.length; node++)
+    {
+      if (counts[node] == 0 || n == nodes.length && average(node) <= average(nodes[n-1]))
+        continue;
+
+      // Insert in decreasing order of average, dropping the fastest if full
+      int i = n < nodes.length ? n++ : n-1;
+      while (i > 0 && average(nodes[i-1]) < average(node))
+      {
+        nodes[i] = nodes[i-1];
+        i--;
+      }
+      nodes[i] = node;
+    }
+    return Arrays.copyOf(nodes, n);
+  }
+
+
+
+  void clear()
+  {
+    Arrays.fill(sums, 0);
+    Arrays.fill(counts, 0);
+    Arrays.fill(buckets, 0);
+  }
+}
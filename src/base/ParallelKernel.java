@@ -0,0 +1,480 @@
+package base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import base.BaseDissemination.Message;
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Peer;
+import peernet.transport.Address;
+import peernet.transport.AddressSim;
+import peernet.transport.Transport;
+
+/**
+ * Disseminates each block as a conservative parallel discrete-event
+ * simulation of its own, instead of through the engine's event queue.
+ * Used by {@link BaseDissemination} if its parameter {@code threads} is
+ * positive.
+ *
+ * Routers are spread round-robin over {@code threads} partitions, each with
+ * its own event queue and thread, and nodes go with their router. Routers
+ * with zero latency between them go together, so nodes on the same router,
+ * whose latency is zero, never exchange messages across partitions. Every
+ * message between partitions takes at least the lowest one-way latency
+ * over the links between them in use (the lookahead), so if T is the time
+ * of the earliest pending event, no message sent can reach another
+ * partition before T+lookahead. All partitions thus process their events
+ * up to then in parallel, meet at a barrier, exchange the messages they
+ * sent, and go on with the next window (YAWNS).
+ *
+ * Each node processes its events ordered by time, ties broken by a key that
+ * does not depend on the partitioning, and random transport stages draw
+ * from a separate generator per sender. So results are identical for any
+ * number of threads, 1 included. They differ from the engine's, though,
+ * which breaks ties and draws random numbers in global event order.
+ *
+ * A block is disseminated to the end as soon as it is mined, so the kernel
+ * is only equivalent to the engine if each block's dissemination is over
+ * before any control runs next, e.g., before the next block is mined.
+ */
+public class ParallelKernel
+{
+  /**
+   * An event for a node, ordered by time, and then by a key that does not
+   * depend on the partitioning.
+   */
+  static private final class Event implements Comparable<Event>
+  {
+    final long time;
+    final int node;
+    final int src;  // sender, or upstream peer of a local event, or -1
+    final Message msg;
+
+    Event(long time, int node, int src, Message msg)
+    {
+      this.time = time;
+      this.node = node;
+      this.src = src;
+      this.msg = msg;
+    }
+
+    @Override
+    public int compareTo(Event e)
+    {
+      if (time != e.time)
+        return Long.compare(time, e.time);
+      if (node != e.node)
+        return Integer.compare(node, e.node);
+      if (msg.type != e.msg.type)
+        return msg.type.compareTo(e.msg.type);
+      if (src != e.src)
+        return Integer.compare(src, e.src);
+      if (msg.blockId != e.msg.blockId)
+        return Integer.compare(msg.blockId, e.msg.blockId);
+      return Integer.compare(msg.hops, e.msg.hops);
+    }
+  }
+
+
+
+  /**
+   * The nodes {@code partitionOf[node] == index}, with their pending events.
+   */
+  private final class Partition implements Callable<Void>
+  {
+    final int index;
+    final PriorityQueue<Event> queue = new PriorityQueue<>();
+    final ArrayList<ArrayList<Event>> outbox = new ArrayList<>();  // per destination partition
+    long time;
+
+    Partition(int index)
+    {
+      this.index = index;
+      for (int i=0; i<threads; i++)
+        outbox.add(new ArrayList<>());
+    }
+
+    /**
+     * Processes all events before {@code end}.
+     */
+    void process(long end)
+    {
+      Event e;
+      while ((e = queue.peek()) != null && e.time < end)
+      {
+        queue.poll();
+        time = e.time;
+        protocols[e.node].processEvent(e.src < 0 ? null : addresses[e.src], e.msg);
+      }
+    }
+
+    /**
+     * Moves to my queue the events sent to me by all partitions.
+     */
+    void collect()
+    {
+      for (Partition p: partitions)
+      {
+        queue.addAll(p.outbox.get(index));
+        p.outbox.get(index).clear();
+      }
+    }
+
+    long next()
+    {
+      Event e = queue.peek();
+      return e == null ? Long.MAX_VALUE : e.time;
+    }
+
+    @Override
+    public Void call() throws InterruptedException, BrokenBarrierException
+    {
+      while (true)
+      {
+        collected.await();
+        if (done)
+          return null;
+
+        try
+        {
+          process(windowEnd);
+        }
+        catch (RuntimeException | Error e)
+        {
+          fail(e);  // but keep meeting the others at the barriers
+        }
+
+        processed.await();
+        collect();
+      }
+    }
+  }
+
+
+
+  private final SimulationContext context;
+  private final int threads;
+  private final TransportPipeline transport;
+
+  private final BaseDissemination[] protocols;
+  private final AddressSim[] addresses;
+  private final Random[] random;  // per sender
+  private final int[] partitionOf; // per node
+
+  private final Partition[] partitions;
+  private final CyclicBarrier collected;
+  private final CyclicBarrier processed;
+  private final ThreadPoolExecutor executor;
+
+  private int lookahead;
+  private volatile long windowEnd;
+  private volatile boolean done;
+  private Throwable failure;
+
+  // Deliveries of the current block, as time<<(HOP_BITS+NODE_BITS) | hops<<NODE_BITS | node
+  static private final int HOP_BITS = 12;
+  static private final int NODE_BITS = 24;
+  private long[] deliveries = new long[0];
+  private int numDeliveries;
+  private int blockId;
+
+
+
+  ParallelKernel(SimulationContext context, int pid)
+  {
+    this.context = context;
+    this.threads = context.threads;
+
+    Transport t = Network.get(0).getTransportByPid(pid);
+    if (!(t instanceof TransportPipeline))
+      throw new IllegalStateException("The parallel kernel needs a TransportPipeline, not "+t.getClass().getName());
+    transport = (TransportPipeline) t;
+    transport.prepare(Network.get(0));
+
+    protocols = new BaseDissemination[Network.size()];
+    addresses = new AddressSim[Network.size()];
+    random = new Random[Network.size()];
+    SplittableRandom seeds = new SplittableRandom(CommonState.r.nextLong());
+    for (int i=0; i<Network.size(); i++)
+    {
+      Node node = Network.get(i);
+      assert node.getID() == i;
+      protocols[i] = (BaseDissemination) node.getProtocol(pid);
+      addresses[i] = new AddressSim(node);
+      random[i] = new Random(seeds.nextLong());
+    }
+
+    partitionOf = partitionNodes(LatencyMatrix.get());
+    partitions = new Partition[threads];
+    for (int i=0; i<threads; i++)
+      partitions[i] = new Partition(i);
+
+    collected = new CyclicBarrier(threads, this::nextWindow);
+    processed = new CyclicBarrier(threads);
+
+    // Partition 0 is run by the calling thread. Idle workers exit after a second.
+    if (threads > 1)
+    {
+      executor = new ThreadPoolExecutor(threads-1, threads-1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r ->
+      {
+        Thread thread = new Thread(r, "ParallelKernel");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    else
+      executor = null;
+  }
+
+
+
+  /**
+   * Disseminates the block of {@code msg}, mined by {@code miner}, to the end.
+   */
+  void disseminate(Node miner, Message msg)
+  {
+    lookahead = lookahead();
+    blockId = msg.blockId;
+    numDeliveries = 0;
+    failure = null;
+
+    int id = (int) miner.getID();
+    for (Partition p: partitions)
+    {
+      p.queue.clear();
+      p.time = CommonState.getTime();
+    }
+    partitions[partitionOf[id]].queue.add(new Event(CommonState.getTime(), id, -1, msg));
+
+    if (threads == 1)
+      partitions[0].process(Long.MAX_VALUE);
+    else
+      runPartitions();
+
+    flushDeliveries();
+  }
+
+
+
+  private void runPartitions()
+  {
+    ArrayList<Future<Void>> futures = new ArrayList<>();
+    for (int i=1; i<threads; i++)
+      futures.add(executor.submit(partitions[i]));
+
+    try
+    {
+      partitions[0].call();
+      for (Future<Void> f: futures)
+        f.get();
+    }
+    catch (InterruptedException | BrokenBarrierException | ExecutionException e)
+    {
+      throw new IllegalStateException("Parallel kernel interrupted", e);
+    }
+
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+  }
+
+
+
+  /**
+   * Run by the last partition reaching {@link #collected}: opens the window
+   * from the earliest pending event, or ends the dissemination.
+   */
+  private void nextWindow()
+  {
+    long next = Long.MAX_VALUE;
+    for (Partition p: partitions)
+      next = Math.min(next, p.next());
+
+    done = failure != null || next == Long.MAX_VALUE;
+    windowEnd = next + lookahead;
+  }
+
+
+
+  private synchronized void fail(Throwable e)
+  {
+    if (failure == null)
+      failure = e;
+  }
+
+
+
+  /**
+   * Returns the partition of each node: groups of routers linked by zero
+   * latency, usually each router on its own, are spread round-robin, in
+   * order of their lowest router, and nodes go with their router.
+   */
+  private int[] partitionNodes(LatencyMatrix matrix)
+  {
+    // Union-find over the routers, each group rooted at its lowest router
+    int routers = matrix.routers();
+    int[] group = new int[routers];
+    for (int a=0; a<routers; a++)
+    {
+      group[a] = a;
+      for (int b=0; b<a; b++)
+      {
+        if (matrix.latency(a, b) != 0 && matrix.latency(b, a) != 0)
+          continue;
+        int ra = root(group, a);
+        int rb = root(group, b);
+        group[Math.max(ra, rb)] = Math.min(ra, rb);
+      }
+    }
+
+    int[] partitionOfRouter = new int[routers];
+    int groups = 0;
+    for (int a=0; a<routers; a++)
+      partitionOfRouter[a] = root(group, a) == a ? groups++ % threads : partitionOfRouter[root(group, a)];
+
+    int[] partitionOf = new int[protocols.length];
+    for (int i=0; i<protocols.length; i++)
+      partitionOf[i] = partitionOfRouter[matrix.router(i)];
+    return partitionOf;
+  }
+
+
+
+  static private int root(int[] group, int a)
+  {
+    while (group[a] != a)
+      a = group[a] = group[group[a]];
+    return a;
+  }
+
+
+
+  /**
+   * Returns the lowest one-way latency, in either direction, over the links
+   * between nodes and their downstream peers in other partitions, or
+   * {@code Integer.MAX_VALUE} if there are none.
+   */
+  private int lookahead()
+  {
+    LatencyMatrix matrix = LatencyMatrix.get();
+    int min = Integer.MAX_VALUE;
+    for (int i=0; i<protocols.length; i++)
+    {
+      for (Peer peer: protocols[i].downstreamPeers)
+      {
+        int j = (int) peer.getID();
+        if (partitionOf[i] == partitionOf[j])
+          continue;
+        min = Math.min(min, positive(matrix.nodeLatency(i, j)));
+        min = Math.min(min, positive(matrix.nodeLatency(j, i)));
+      }
+    }
+
+    assert min > 0: "Routers of different partitions with zero latency";
+    return min;
+  }
+
+
+
+  /**
+   * Broken links have a negative latency, and carry no messages.
+   */
+  static private int positive(int latency)
+  {
+    return latency < 0 ? Integer.MAX_VALUE : latency;
+  }
+
+
+
+  /**
+   * Returns the current time of {@code node}'s partition.
+   */
+  long time(Node node)
+  {
+    return partitions[partitionOf[(int) node.getID()]].time;
+  }
+
+
+
+  /**
+   * Sends {@code msg} from {@code sender} to {@code dest}.
+   */
+  void send(Node sender, Address dest, Message msg)
+  {
+    int s = (int) sender.getID();
+    int r = (int) ((AddressSim) dest).node.getID();
+
+    int delay = transport.delay(s, r, msg.size(), random[s]);
+    if (delay < 0)
+      return;
+
+    Partition p = partitions[partitionOf[s]];
+    Event e = new Event(p.time+delay, r, s, msg);
+
+    if (partitionOf[r] == p.index)
+      p.queue.add(e);
+    else if (delay < lookahead)
+      throw new IllegalStateException("Message delay "+delay+" is below the lookahead "+lookahead);
+    else
+      p.outbox.get(partitionOf[r]).add(e);
+  }
+
+
+
+  /**
+   * Schedules {@code msg} for {@code node} itself after {@code delay}, to be
+   * processed with {@code replyTo} as its source address.
+   */
+  void schedule(Node node, long delay, Address replyTo, Message msg)
+  {
+    int id = (int) node.getID();
+    int src = replyTo == null ? -1 : (int) ((AddressSim) replyTo).node.getID();
+
+    Partition p = partitions[partitionOf[id]];
+    p.queue.add(new Event(p.time+delay, id, src, msg));
+  }
+
+
+
+  /**
+   * Keeps a delivery of the current block, to pass it on to {@link Stats}
+   * at the end, in an order independent of the partitioning.
+   */
+  synchronized void reportDelivery(int blockId, int nodeId, long time, int hops)
+  {
+    assert blockId == this.blockId && hops < 1<<HOP_BITS && nodeId < 1<<NODE_BITS && time < 1L<<63-HOP_BITS-NODE_BITS;
+
+    if (numDeliveries == deliveries.length)
+      deliveries = Arrays.copyOf(deliveries, Math.max(1024, 2*numDeliveries));
+    deliveries[numDeliveries++] = (time<<HOP_BITS | hops)<<NODE_BITS | nodeId;
+  }
+
+
+
+  private void flushDeliveries()
+  {
+    Arrays.sort(deliveries, 0, numDeliveries);
+
+    if (context.stats != null)
+      for (int i=0; i<numDeliveries; i++)
+      {
+        long d = deliveries[i];
+        context.stats.reportDelivery(blockId, (int) (d & (1<<NODE_BITS)-1), d>>HOP_BITS+NODE_BITS, (int) (d>>NODE_BITS & (1<<HOP_BITS)-1));
+      }
+  }
+}
@@ -0,0 +1,106 @@
+package base;
+
+import peernet.core.Node;
+import util.QuickSelect;
+
+/**
+ * The mutable state of a single simulation that is shared by all nodes,
+ * rather than kept in static fields. This way, several simulations can
+ * run one after the other (see {@link Sweep}), or side by side, in the
+ * same JVM.
+ *
+ * A context is created along with the prototype of the dissemination
+ * protocol, and is shared by all its clones. Protocols reach it through
+ * {@link BaseDissemination#context()}, and controls and transports
+ * through a node, see {@link #of(Node)}.
+ */
+public class SimulationContext
+{
+  final int extraTcpTrips;
+
+  /** Threads of the {@link ParallelKernel}, or 0 to use the engine. */
+  final int threads;
+
+  /** Created on the first block, if {@link #threads} is positive. */
+  ParallelKernel kernel;
+
+  private final QuickSelect quickSelect = new QuickSelect();
+
+  /** Set by the {@link Stats} control, if any. */
+  Stats stats;
+
+  /** Set by the {@link Stats} control, if it counts traffic. */
+  Traffic traffic;
+
+  /** Set by {@link #enableCoordinates}, if some protocol uses them. */
+  Vivaldi coordinates;
+
+
+
+  SimulationContext(int extraTcpTrips, int threads)
+  {
+    this.extraTcpTrips = extraTcpTrips;
+    this.threads = threads;
+  }
+
+
+
+  /**
+   * Returns the context of the dissemination protocol of {@code node}, or
+   * {@code null} if it runs none.
+   */
+  public static SimulationContext of(Node node)
+  {
+    for (int i=0; i<node.protocolSize(); i++)
+      if (node.getProtocol(i) instanceof BaseDissemination)
+        return ((BaseDissemination) node.getProtocol(i)).context;
+    return null;
+  }
+
+
+
+  /**
+   * Returns the {@link QuickSelect} of this simulation. It is not thread
+   * safe, so it should only be used by the simulation's own thread.
+   */
+  public QuickSelect quickSelect()
+  {
+    return quickSelect;
+  }
+
+
+
+  /**
+   * Makes the dissemination protocol learn the {@link Vivaldi} coordinates
+   * of all nodes, and returns them.
+   */
+  public Vivaldi enableCoordinates()
+  {
+    if (coordinates == null)
+      coordinates = new Vivaldi();
+    return coordinates;
+  }
+
+
+
+  public void reportMiner(int blockId, int minerId)
+  {
+    if (stats != null)
+      stats.reportMiner(blockId, minerId);
+  }
+
+
+
+  /**
+   * Reports that node {@code nodeId} validated block {@code blockId}.
+   * Under the {@link ParallelKernel}, deliveries are passed on to
+   * {@link Stats} once the block's dissemination is over.
+   */
+  public void reportDelivery(int blockId, int nodeId, long time, int hops)
+  {
+    if (kernel != null)
+      kernel.reportDelivery(blockId, nodeId, time, hops);
+    else if (stats != null)
+      stats.reportDelivery(blockId, nodeId, time, hops);
+  }
+}
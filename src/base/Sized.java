@@ -0,0 +1,13 @@
+package base;
+
+/**
+ * A payload that knows its size on the wire, so that {@link SizedTransport}s
+ * can account for it.
+ */
+public interface Sized
+{
+  /**
+   * @return The size of this payload in bytes.
+   */
+  public int size();
+}
@@ -0,0 +1,112 @@
+package base;
+
+import peernet.core.Node;
+import peernet.transport.Address;
+import peernet.transport.Transport;
+
+/**
+ * Base class of the transports used for block dissemination, passing each
+ * payload's size (see {@link Sized}) to the actual transport implementation.
+ * 
+ * Messages up to {@link #SMALL_MESSAGE} bytes are assumed to fit in a single
+ * packet, and take the plain one-way latency. Larger ones additionally pay
+ * {@code extra_tcp_trips} round trips, and take longer to transfer as their
+ * size grows, following {@link #transferFactor(int)}.
+ */
+public abstract class SizedTransport extends Transport
+{
+  public static final int SMALL_MESSAGE = 1024;
+
+  /*
+   * Measured transfer times (sec) of messages of various sizes (KB), over a
+   * link of 150ms latency.
+   */
+  static private final int[] size = {5, 10, 20, 50, 100, 200, 500, 1000, 2000};
+  static private final double[] transferForLatency150ms = {0.150, 0.450, 0.750, 1.050, 1.351, 1.651, 2.251, 3.152, 5.253};
+
+  /** Taken from the dissemination protocol, see {@link SimulationContext}. */
+  protected int extra_tcp_trips;
+
+
+
+  @Override
+  public final void send(Node src, Address dest, int pid, Object payload)
+  {
+    int bytes = payload instanceof Sized ? ((Sized) payload).size() : 0;
+    send(src, dest, pid, payload, bytes);
+  }
+
+
+
+  /**
+   * Sends {@code payload} of size {@code bytes}.
+   */
+  protected abstract void send(Node src, Address dest, int pid, Object payload, int bytes);
+
+
+
+  public static boolean isLarge(int bytes)
+  {
+    return bytes > SMALL_MESSAGE;
+  }
+
+
+
+  /**
+   * Returns the time it takes to deliver a message of {@code bytes} over a
+   * link of one-way latency {@code latency}.
+   * 
+   * @param latency Non-negative one-way latency
+   * @param bytes
+   * @return
+   */
+  public int transferLatency(int latency, int bytes)
+  {
+    if (!isLarge(bytes))
+      return latency;
+
+    latency = latency * (1 + 2*extra_tcp_trips);
+
+    double factor = transferFactor(bytes);
+    if (factor != 1.0)
+      latency = (int) (latency * factor);
+
+    return latency;
+  }
+
+
+
+  /**
+   * Returns how many times longer than its latency it takes a link to
+   * transfer {@code bytes}. Measurements are interpolated linearly, and
+   * extrapolated beyond the largest one measured. Messages up to the
+   * smallest size measured (5KB) have a factor of 1.
+   * 
+   * @param bytes
+   * @return
+   */
+  static double transferFactor(int bytes)
+  {
+    double kilobytes = bytes / 1024.0;
+
+    int i = 1;
+    while (i < size.length-1 && kilobytes > size[i])
+      i++;
+
+    if (kilobytes <= size[0])
+      return 1.0;
+
+    double slope = (transferForLatency150ms[i] - transferForLatency150ms[i-1]) / (size[i] - size[i-1]);
+    double transfer = transferForLatency150ms[i-1] + slope * (kilobytes - size[i-1]);
+
+    return transfer / transferForLatency150ms[0];
+  }
+
+
+
+  @Override
+  public Object clone()
+  {
+    return this; // In SIM or EMU modes, all nodes use a single transport instance
+  }
+}
@@ -8,64 +8,195 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 
+import base.BaseDissemination.MSGType;
 import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.core.CommonState;
 import peernet.core.Control;
+import peernet.core.Linkable;
 import peernet.core.Network;
 
+/**
+ * Collects the deliveries of the blocks mined since its last execution,
+ * and prints their statistics.
+ *
+ * Deliveries are not stored, but aggregated as they are reported: delivery
+ * times in a {@link Histogram}, and for each delivery rank and number of
+ * hops, the sum over all blocks. Memory thus does not grow with the number
+ * of blocks or deliveries. Each block only keeps its number of deliveries,
+ * its last delivery time, and its hop counts.
+ *
+ * Deliveries are expected to be reported in order of time, for each block.
+ *
+ * The outputs listing every delivery of every block ({@code times} and
+ * {@code times.miners}) need parameter {@code per_block}, which keeps all
+ * delivery times.
+ *
+ * Output {@code coverage} has a line per execution, with the time until
+ * each block reached each of the percentages of nodes listed in parameter
+ * {@code coverage} (default 50 90 99), averaged over the blocks that
+ * reached it, and at the 90th percentile over all blocks ({@code -} if over
+ * 10% of the blocks did not reach it), along with the number of blocks
+ * that did not reach the highest percentage.
+ *
+ * With parameter {@code binary}, every delivery is also written to file
+ * {@code LOGFILE.deliveries}, in binary, by a {@link DeliveryWriter}.
+ * {@link DeliveryReader} turns such a file into all of the text outputs,
+ * including those listing every delivery, without the simulation writing
+ * them.
+ *
+ * With parameter {@code slowest}, output {@code nodes} lists, at each
+ * execution, the given number of nodes with the highest average delivery
+ * time of the blocks mined by others since the last execution, along with
+ * their router, degree, number of deliveries, and 90th percentile delivery
+ * time (see {@link NodeProfile}). Nodes slow in every round point to a slow
+ * region of the network, or to a poorly connected node.
+ *
+ * With parameter {@code traffic}, the messages of all nodes are counted
+ * (see {@link Traffic}). Output {@code traffic} then has a line per
+ * execution, with the headers, body requests, and bodies sent, the
+ * messages not received (lost by the transport, or still on their way),
+ * the duplicate headers and bodies received, the bytes sent, those wasted on
+ * duplicates, and the most bytes any single node sent (up) and received
+ * (down). Output {@code traffic.nodes} has the bytes each node sent and
+ * received, its duplicates, and the bytes it wasted on them.
+ */
 public class Stats implements Control
 {
+  static private final String PAR_PER_BLOCK = "per_block";
+  static private final String PAR_COVERAGE = "coverage";
+  static private final String PAR_BINARY = "binary";
+  static private final String PAR_SLOWEST = "slowest";
+  static private final String PAR_TRAFFIC = "traffic";
+
+  static private final int BLOCK_PERCENTILE = 90;
+
   // Each block's miner ID
-  static ArrayList<Integer> miners;
+  ArrayList<Integer> miners;
+
+  // Delivery times and hops of all blocks
+  Histogram deliveryTimes;
+  long[] deliveryTimesSum;  // per delivery rank
+  int[] blocksAtRank;       // per delivery rank, the blocks reaching it
+  long[] deliveryHopsSum = new long[16];
+
+  // Per block, indexed by blockId-highestDisplayedBlockId
+  int[] numDeliveries = new int[64];
+  long[] lastDeliveryTime = new long[64];
+  int[][] deliveryHops = new int[64][];
+  long[][] deliveryTimesArray;  // only kept if per_block
+
+  // Coverage percentages, and the number of deliveries reaching each
+  double[] coverage;
+  int[] coverageDeliveries;
+  int[] nextCoverage = new int[64];  // per block, index of the next percentage to reach
+  Histogram[] coverageTimes;         // per percentage, the times blocks reached it
+
+  int disseminationPid;
+  String filebase;
+  final int networkSize;
 
-  // One ArrayList<Long> per block
-  static ArrayList<ArrayList<Long>> deliveryTimesArray;
+  // Binary output, if any, opened on the first delivery of each execution
+  boolean binary;
+  boolean binaryStarted;
+  DeliveryWriter writer;
 
-  // One HashMap per block
-  static ArrayList<HashMap<Integer, Integer>> deliveryHopsArray;
+  // Per node delivery times, if the slowest nodes are printed
+  int slowest;
+  NodeProfile profile;
 
-  static int disseminationPid;
-  String filebase;
+  // Messages sent and received, if counted
+  Traffic traffic;
 
   boolean firstTime = true;
 
   // Storing the maximum reported time and hops
-  static long maxTime = -1;
-  static long maxHops = -1;
+  long maxTime = -1;
+  long maxHops = -1;
 
   // The highest block ID number seen so far (to deal with data array sizes)
-  static int highestReportedBlockId = -1;
-  static int highestDisplayedBlockId = 0;
+  int highestReportedBlockId = -1;
+  int highestDisplayedBlockId = 0;
 
-  static int chainTip = -1;
-  static int blocksOnChain = 0;
-  static int blocksOffChain = 0;
+  int chainTip = -1;
+  int blocksOnChain = 0;
+  int blocksOffChain = 0;
 
   public Stats(String prefix)
   {
+    this(logfile(), Network.size(), Configuration.contains(prefix + "." + PAR_PER_BLOCK),
+        Configuration.getString(prefix + "." + PAR_COVERAGE, "50 90 99"), prefix + "." + PAR_COVERAGE);
+
     disseminationPid = Configuration.getPid(prefix + ".protocol");
-    filebase = Configuration.getString("LOGFILE", null);
-    if (filebase.isEmpty())
-      filebase = null;
+    binary = Configuration.contains(prefix + "." + PAR_BINARY);
+    if (binary && filebase == null)
+      throw new IllegalParameterException(prefix + "." + PAR_BINARY, "Binary output needs a LOGFILE");
+    slowest = Configuration.getInt(prefix + "." + PAR_SLOWEST, 0);
+    if (slowest > 0)
+      profile = new NodeProfile(networkSize);
+
+    // Receive the reports of this simulation's protocols and controls
+    SimulationContext context = ((BaseDissemination) Network.get(0).getProtocol(disseminationPid)).context;
+    context.stats = this;
+    if (Configuration.contains(prefix + "." + PAR_TRAFFIC))
+      context.traffic = traffic = new Traffic(networkSize);
+  }
+
+
+
+  /**
+   * Collects statistics outside of a simulation, see {@link DeliveryReader}.
+   *
+   * @param coverageList Coverage percentages, separated by commas or spaces
+   * @param coverageParameter The parameter that set them, for error messages
+   */
+  Stats(String filebase, int networkSize, boolean perBlock, String coverageList, String coverageParameter)
+  {
+    this.filebase = filebase;
+    this.networkSize = networkSize;
 
     miners = new ArrayList<Integer>();
-    deliveryTimesArray = new ArrayList<ArrayList<Long>>();
-    deliveryHopsArray = new ArrayList<HashMap<Integer,Integer>>();
+    deliveryTimes = new Histogram();
+    deliveryTimesSum = new long[networkSize];
+    blocksAtRank = new int[networkSize];
+    if (perBlock)
+      deliveryTimesArray = new long[64][];
+
+    String[] percentages = coverageList.trim().split("[,\\s]+");
+    coverage = new double[percentages.length];
+    coverageDeliveries = new int[percentages.length];
+    coverageTimes = new Histogram[percentages.length];
+    for (int i=0; i<coverage.length; i++)
+    {
+      coverage[i] = Double.parseDouble(percentages[i]);
+      if (coverage[i] <= 0 || coverage[i] > 100 || i > 0 && coverage[i] <= coverage[i-1])
+        throw new IllegalParameterException(coverageParameter, "Expected increasing percentages, not "+percentages[i]);
+      coverageDeliveries[i] = (int) Math.ceil(coverage[i] * networkSize / 100);
+      coverageTimes[i] = new Histogram();
+    }
+  }
+
+
+
+  private static String logfile()
+  {
+    String filebase = Configuration.getString("LOGFILE", null);
+    return filebase.isEmpty() ? null : filebase;
   }
 
 
 
-  public static void reportMiner(int blockId, int minerId)
+  void reportMiner(int blockId, int minerId)
   {
     miners.add(minerId);
 
     // Check whether the miner is already in possession of the chain tip
     BaseDissemination miner = (BaseDissemination) Network.get(minerId).getProtocol(disseminationPid);
-    if (blockId==0 || miner.validatedBodies.contains(chainTip))
+    if (blockId==0 || miner.blockState.isValidated(chainTip))
     {
       // Update the chain tip to the current block
       chainTip = blockId;
@@ -82,21 +213,58 @@ public class Stats implements Control
 
 
 
-  public static void reportDelivery(int blockId, long time, int hops)
+  void reportDelivery(int blockId, int nodeId, long time, int hops)
   {
+    if (binary)
+      binaryOutput().add(blockId, nodeId, time, hops);
+
+    int b = blockId-highestDisplayedBlockId;
     if (blockId > highestReportedBlockId)
     {
-      while (highestReportedBlockId < blockId)
+      highestReportedBlockId = blockId;
+      if (b >= numDeliveries.length)
       {
-        deliveryTimesArray.add(new ArrayList<>());
-        deliveryHopsArray.add(new HashMap<Integer, Integer>());
-        highestReportedBlockId++;
+        int n = Math.max(b+1, 2*numDeliveries.length);
+        numDeliveries = Arrays.copyOf(numDeliveries, n);
+        lastDeliveryTime = Arrays.copyOf(lastDeliveryTime, n);
+        deliveryHops = Arrays.copyOf(deliveryHops, n);
+        nextCoverage = Arrays.copyOf(nextCoverage, n);
+        if (deliveryTimesArray != null)
+          deliveryTimesArray = Arrays.copyOf(deliveryTimesArray, n);
       }
     }
 
-    deliveryTimesArray.get(blockId-highestDisplayedBlockId).add(time);
-    int h = deliveryHopsArray.get(blockId-highestDisplayedBlockId).getOrDefault(hops, Integer.valueOf(0));
-    deliveryHopsArray.get(blockId-highestDisplayedBlockId).put(hops, h+1);
+    int rank = numDeliveries[b]++;
+    lastDeliveryTime[b] = time;
+    deliveryTimes.add(time);
+    if (rank < deliveryTimesSum.length)
+    {
+      deliveryTimesSum[rank] += time;
+      blocksAtRank[rank]++;
+    }
+
+    // Record the coverage percentages this delivery reaches, if any
+    while (nextCoverage[b] < coverage.length && rank+1 >= coverageDeliveries[nextCoverage[b]])
+      coverageTimes[nextCoverage[b]++].add(time);
+
+    if (deliveryTimesArray != null)
+    {
+      long[] times = deliveryTimesArray[b];
+      if (times == null || rank == times.length)
+        deliveryTimesArray[b] = times = Arrays.copyOf(times == null ? new long[0] : times, Math.max(16, 2*rank));
+      times[rank] = time;
+    }
+
+    int[] h = deliveryHops[b];
+    if (h == null || hops >= h.length)
+      deliveryHops[b] = h = Arrays.copyOf(h == null ? new int[0] : h, Math.max(16, hops+1));
+    h[hops]++;
+    if (hops >= deliveryHopsSum.length)
+      deliveryHopsSum = Arrays.copyOf(deliveryHopsSum, Math.max(hops+1, 2*deliveryHopsSum.length));
+    deliveryHopsSum[hops]++;
+
+    if (profile != null && hops > 0)
+      profile.add(nodeId, time);
 
     maxTime = Math.max(time, maxTime);
     maxHops = Math.max(hops, maxHops);
@@ -104,6 +272,49 @@ public class Stats implements Control
 
 
 
+  private DeliveryWriter binaryOutput()
+  {
+    if (writer == null)
+    {
+      try
+      {
+        writer = new DeliveryWriter(filebase + ".deliveries", binaryStarted, networkSize, coverage);
+        binaryStarted = true;
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return writer;
+  }
+
+
+
+  /**
+   * Number of blocks reported since the last execution.
+   */
+  private int numBlocks()
+  {
+    return highestReportedBlockId+1 - highestDisplayedBlockId;
+  }
+
+
+
+  /**
+   * Returns the delivery times of the {@code b}-th block reported since the
+   * last execution, if kept (see {@code per_block}).
+   */
+  private long[] deliveryTimes(int b)
+  {
+    if (deliveryTimesArray == null)
+      throw new IllegalStateException("Stats need parameter "+PAR_PER_BLOCK+" to print each block's delivery times");
+    long[] times = deliveryTimesArray[b];
+    return times == null ? new long[0] : Arrays.copyOf(times, numDeliveries[b]);
+  }
+
+
+
   private PrintStream getOutputStream(String extension, boolean append) throws FileNotFoundException
   {
     if (filebase==null)
@@ -134,10 +345,10 @@ public class Stats implements Control
     PrintStream out = getOutputStream("times", true);
     out.println("#time\tnodes");
 
-    for (ArrayList<Long> times: deliveryTimesArray)
+    for (int b=0; b<numBlocks(); b++)
     {
-      int uninformedNodes = Network.size();
-      for (long time: times)
+      int uninformedNodes = networkSize;
+      for (long time: deliveryTimes(b))
         out.println(time+"\t"+(--uninformedNodes));
       out.print("\n\n");
     }
@@ -167,7 +378,7 @@ public class Stats implements Control
     PrintStream out = getOutputStream("times.miners", false);
     out.println("#time\tnodes\tminer");
 
-    for (int miner=0; miner<Network.size(); miner++)
+    for (int miner=0; miner<networkSize; miner++)
     {
       int blockId = getLastBlockOfMiner(miner);
 
@@ -175,9 +386,8 @@ public class Stats implements Control
         out.println(0 + "\t" + 0 + "\t" + miner);
       else
       {
-        ArrayList<Long> times = deliveryTimesArray.get(blockId);
-        int uninformedNodes = Network.size();
-        for (long time: times)
+        int uninformedNodes = networkSize;
+        for (long time: deliveryTimes(blockId))
           out.println(time+"\t"+(--uninformedNodes)+"\t"+miner);
       }
 
@@ -201,26 +411,23 @@ public class Stats implements Control
     PrintStream out = getOutputStream("times.avg", true);
     out.println("#time\tnodes");
 
-    int numBlocks = deliveryTimesArray.size();
-    int uninformedNodes = Network.size() * numBlocks;
-    ArrayList<Long> all = new ArrayList<>(uninformedNodes);
-
-    for (ArrayList<Long> times: deliveryTimesArray)
-      all.addAll(times);
-
-    Collections.sort(all);
+    int numBlocks = numBlocks();
+    long uninformedNodes = networkSize * (long) numBlocks;
 
     long time = 0;
     long prevTime = 0;
-    for (long t: all)
+    for (int i=0; i<deliveryTimes.buckets(); i++)
     {
-      time = t;
+      if (deliveryTimes.count(i) == 0)
+        continue;
+
+      time = Histogram.value(i);
       if (time != prevTime)
       {
         out.println(prevTime+"\t"+uninformedNodes/(double)numBlocks);
         prevTime = time;
       }
-      uninformedNodes--;
+      uninformedNodes -= deliveryTimes.count(i);
     }
     out.println(time+"\t"+0.0);
     out.print("\n\n");
@@ -240,28 +447,33 @@ public class Stats implements Control
     PrintStream out = getOutputStream("times.xavg", true);
     out.println("#time\tnodes");
   
-    int[] all = new int[(int)maxTime];
-  
-    int numBlocks = deliveryTimesArray.size();
-  
-    for (ArrayList<Long> times: deliveryTimesArray)
+    int numBlocks = numBlocks();
+
+    // Blocks in order of their last delivery, until which they count
+    long[] ends = new long[numBlocks];
+    for (int b=0; b<numBlocks; b++)
+      ends[b] = lastDeliveryTime[b] << 32 | numDeliveries[b];
+    Arrays.sort(ends);
+
+    // At each msec t, each block still being delivered counts its nodes
+    // not informed by t
+    int activeBlocks = numBlocks;
+    long deliveredByEnded = 0;  // by the blocks that are over
+    long delivered = 0;         // by all blocks
+    int next = 0;
+    int bucket = 0;
+    for (long t=0; t<maxTime; t++)
     {
-      long t = 0;
-      int uninformedNodes = Network.size();
-  
-      for (long time: times)
+      while (bucket < deliveryTimes.buckets() && Histogram.value(bucket) <= t)
+        delivered += deliveryTimes.count(bucket++);
+      while (next < numBlocks && ends[next]>>32 <= t)
       {
-        while (t<time)
-          all[(int) t++] += uninformedNodes;
-        uninformedNodes--;
+        activeBlocks--;
+        deliveredByEnded += (int) ends[next++];
       }
-    }
-  
-    int time = 0;
-    for (long uninformedNodes: all)
-    {
-      out.println(time + "\t" + uninformedNodes/(double)numBlocks);
-      time++;
+
+      long uninformedNodes = activeBlocks * (long) networkSize - (delivered-deliveredByEnded);
+      out.println(t + "\t" + uninformedNodes/(double)numBlocks);
     }
   
     out.print("\n\n");
@@ -273,8 +485,9 @@ public class Stats implements Control
   /**
    * Horizontal averaging over all block delivery times.
    * That is, for each number of uninformed nodes, the average
-   * time when this was reached (across all block disseminations)
-   * is reported.
+   * time when this was reached (across the block disseminations
+   * that reached it) is reported, down to the lowest number any
+   * block reached.
    * 
    * @throws FileNotFoundException 
    */
@@ -283,19 +496,10 @@ public class Stats implements Control
     PrintStream out = getOutputStream("times.alt", true);
     out.println("#time\tnodes");
 
-    ArrayList<Long> deliveryTimesSum = new ArrayList<>(Network.size());
-    for (int i=0; i<Network.size(); i++)
-      deliveryTimesSum.add(0L);
-
-    for (ArrayList<Long> times: deliveryTimesArray)
-      for (int i=0; i<Network.size(); i++)
-        deliveryTimesSum.set(i, deliveryTimesSum.get(i)+times.get(i));
-
-    int numBlocks = deliveryTimesArray.size();
-    for (int i=0; i<Network.size(); i++)
+    for (int i=0; i<networkSize && blocksAtRank[i] > 0; i++)
     {
-      double time = deliveryTimesSum.get(i) / (double)numBlocks;
-      double blocks = Network.size() - i - 1;
+      double time = deliveryTimesSum[i] / (double)blocksAtRank[i];
+      double blocks = networkSize - i - 1;
       out.println(time + "\t" + blocks);
     }
 
@@ -321,25 +525,140 @@ public class Stats implements Control
 
 
 
+  /**
+   * Prints a line with the times until the blocks reached each coverage
+   * percentage, since the last execution.
+   * 
+   * @throws FileNotFoundException 
+   */
+  private void printCoverage(long time) throws FileNotFoundException
+  {
+    PrintStream out = getOutputStream("coverage", true);
+    if (firstTime)
+    {
+      out.print("#time\tblocks");
+      for (double c: coverage)
+      {
+        String label = c == (int) c ? String.valueOf((int) c) : String.valueOf(c);
+        out.print("\t"+label+"%avg\t"+label+"%p"+BLOCK_PERCENTILE);
+      }
+      out.println("\tmissed");
+    }
+
+    int numBlocks = numBlocks();
+    out.print(time+"\t"+numBlocks);
+    for (Histogram times: coverageTimes)
+    {
+      double avg = 0;
+      for (int i=0; i<times.buckets(); i++)
+        avg += Histogram.value(i) * (double) times.count(i);
+      avg /= times.total();
+
+      // Blocks not reaching this percentage rank last
+      long rank = (long) Math.ceil(numBlocks * BLOCK_PERCENTILE / 100.0) - 1;
+      long p = times.valueAt(rank);
+      out.print("\t"+(times.total() == 0 ? "-" : String.format("%.1f", avg))+"\t"+(p < 0 ? "-" : p));
+    }
+    out.println("\t"+(numBlocks-coverageTimes[coverage.length-1].total()));
+    out.close();
+  }
+
+
+
+  /**
+   * Prints the nodes with the highest average delivery time since the last
+   * execution, slowest first.
+   * 
+   * @throws FileNotFoundException 
+   */
+  private void printSlowestNodes(long time) throws FileNotFoundException
+  {
+    PrintStream out = getOutputStream("nodes", true);
+    out.println("#time\tnode\trouter\tdegree\tblocks\tavg\tp"+BLOCK_PERCENTILE);
+
+    LatencyMatrix matrix = LatencyMatrix.get();
+    for (int node: profile.slowest(slowest))
+    {
+      int degree = ((Linkable) Network.get(node).getProtocol(disseminationPid)).degree();
+      out.format("%d\t%d\t%d\t%d\t%d\t%.1f\t%d\n", time, node, matrix.router(node), degree,
+          profile.count(node), profile.average(node), profile.percentile(node, BLOCK_PERCENTILE));
+    }
+
+    out.print("\n\n");
+    out.close();
+  }
+
+
+
+  /**
+   * Prints the traffic since the last execution, in total and per node.
+   * 
+   * @throws FileNotFoundException 
+   */
+  private void printTraffic(long time) throws FileNotFoundException
+  {
+    int header = MSGType.DN__RECEIVE_AND_PROCESS_HEADER.ordinal();
+    int request = MSGType.UP__SEND_BODY.ordinal();
+    int body = MSGType.DN__RECEIVE_AND_PROCESS_BODY.ordinal();
+
+    PrintStream out = getOutputStream("traffic.nodes", true);
+    out.println("#time\tnode\tsent\treceived\tdup_headers\tdup_bodies\twasted");
+
+    long[] messages = new long[Traffic.TYPES];
+    long lost = 0;
+    long duplicateHeaders = 0;
+    long duplicateBodies = 0;
+    long bytes = 0;
+    long wasted = 0;
+    long maxUp = 0;
+    long maxDown = 0;
+    for (int node=0; node<networkSize; node++)
+    {
+      for (int type=0; type<Traffic.TYPES; type++)
+      {
+        messages[type] += traffic.messagesSent[node*Traffic.TYPES + type];
+        lost += traffic.messagesSent[node*Traffic.TYPES + type] - traffic.messagesReceived[node*Traffic.TYPES + type];
+      }
+      duplicateHeaders += traffic.duplicateHeaders[node];
+      duplicateBodies += traffic.duplicateBodies[node];
+      wasted += traffic.bytesWasted[node];
+
+      long up = traffic.sum(traffic.bytesSent, node);
+      long down = traffic.sum(traffic.bytesReceived, node);
+      bytes += up;
+      maxUp = Math.max(maxUp, up);
+      maxDown = Math.max(maxDown, down);
+
+      out.println(time + "\t" + node + "\t" + up + "\t" + down + "\t" + traffic.duplicateHeaders[node] + "\t" +
+          traffic.duplicateBodies[node] + "\t" + traffic.bytesWasted[node]);
+    }
+    out.print("\n\n");
+    out.close();
+
+    out = getOutputStream("traffic", true);
+    if (firstTime)
+      out.println("#time\tblocks\theaders\trequests\tbodies\tlost\tdup_headers\tdup_bodies\tbytes\twasted\tmax_up\tmax_down");
+    out.println(time + "\t" + numBlocks() + "\t" + messages[header] + "\t" + messages[request] + "\t" + messages[body] + "\t" +
+        lost + "\t" + duplicateHeaders + "\t" + duplicateBodies + "\t" + bytes + "\t" + wasted + "\t" + maxUp + "\t" + maxDown);
+    out.close();
+  }
+
+
+
   private void printAllHops() throws FileNotFoundException
   {
     PrintStream out = getOutputStream("hops", true);
     out.println("#hops\tcount");
 
-    HashMap<Integer,Integer> avg = new HashMap<>();
-
-    for (HashMap<Integer,Integer> hopsForBlock: deliveryHopsArray)
+    int numBlocks = numBlocks();
+    for (int b=0; b<numBlocks; b++)
     {
+      int[] hopsForBlock = deliveryHops[b] == null ? new int[0] : deliveryHops[b];
       int hops = 0;
-      int count;
-      while ( (count=hopsForBlock.getOrDefault(hops, Integer.valueOf(-1))) >= 0)
+      while (hops < hopsForBlock.length && hopsForBlock[hops] > 0)
       {
         // output the number of nodes that received this block in 'count' hops
-        out.format("%d\t%d\n", hops, count);
-
-        // Add this record to the aggregation structure
-        int c = avg.getOrDefault(hops, Integer.valueOf(0));
-        avg.put(hops, c+count);
+        out.format("%d\t%d\n", hops, hopsForBlock[hops]);
 
         // Increment 'hops'
         hops++;
@@ -353,9 +672,8 @@ public class Stats implements Control
     out = getOutputStream("hops.avg", true);
     out.println("#hops\tcount%");
     int hops = 0;
-    int count;
-    int numBlocks = deliveryHopsArray.size();
-    while ( (count=avg.getOrDefault(hops, Integer.valueOf(-1))) >= 0)
+    long count;
+    while (hops < deliveryHopsSum.length && (count=deliveryHopsSum[hops]) > 0)
     {
       // output the number of nodes that received this block in 'count' hops
 //      out.format("%d\t%f\n", hops, count/(double)blocks);
@@ -376,10 +694,54 @@ public class Stats implements Control
     if (CommonState.getTime() == 0)
       return false;
 
+    print(CommonState.getTime(), false);
+
+    return false;
+  }
+
+
+
+  /**
+   * Prints the statistics of the deliveries reported since the last call,
+   * at time {@code time}, and resets them. If {@code all}, it prints all
+   * outputs, as {@link DeliveryReader} does.
+   */
+  void print(long time, boolean all)
+  {
     //System.out.println("Starting to compute stats!");
     try
     {
+      if (binary)
+      {
+        // A writer that failed is not reused; its failure ends the simulation
+        try
+        {
+          binaryOutput().close(time);
+        }
+        catch (IOException e)
+        {
+          throw new UncheckedIOException(e);
+        }
+        finally
+        {
+          writer = null;
+        }
+      }
+
       printVerticalAvg();
+      printCoverage(time);
+      if (profile != null)
+        printSlowestNodes(time);
+      if (traffic != null)
+        printTraffic(time);
+      if (all)
+      {
+        printVerticalAvgExhaustive();
+        printHorizontalAvg();
+        printAllTimes();
+        printAllTimesPerMiner();
+        printAllHops();
+      }
       //printVerticalAvgExhaustive();
       //printHorizontalAvg();
 
@@ -390,8 +752,22 @@ public class Stats implements Control
 
       // Finally, reset all data, to prepare for next measurements
       miners.clear();
-      deliveryTimesArray.clear();
-      deliveryHopsArray.clear();
+      deliveryTimes.clear();
+      Arrays.fill(deliveryTimesSum, 0);
+      Arrays.fill(blocksAtRank, 0);
+      Arrays.fill(deliveryHopsSum, 0);
+      int numBlocks = Math.min(numBlocks(), numDeliveries.length);
+      Arrays.fill(numDeliveries, 0, numBlocks, 0);
+      Arrays.fill(nextCoverage, 0, numBlocks, 0);
+      for (Histogram times: coverageTimes)
+        times.clear();
+      Arrays.fill(deliveryHops, 0, numBlocks, null);
+      if (deliveryTimesArray != null)
+        Arrays.fill(deliveryTimesArray, 0, numBlocks, null);
+      if (profile != null)
+        profile.clear();
+      if (traffic != null)
+        traffic.clear();
       maxTime = -1;
       maxHops = -1;
       highestDisplayedBlockId = highestReportedBlockId+1;
@@ -402,7 +778,5 @@ public class Stats implements Control
     }
 
     firstTime = false;
-
-    return false;
   }
 }
@@ -0,0 +1,322 @@
+package base;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import peernet.config.Configuration;
+import peernet.config.MissingParameterException;
+import peernet.config.IllegalParameterException;
+import peernet.config.ParsedProperties;
+import peernet.core.CommonState;
+import peernet.core.Engine;
+import peernet.core.Node;
+
+/**
+ * Runs a parameter sweep over a base configuration, replacing the
+ * {@code work.py | ./go} pipeline that launches one JVM per run.
+ * 
+ * <pre>
+ * java base.Sweep [-j workers] cr.cfg NODES=1000 'TB=[0,50,100]' 'C,R=[4:4,8:8]' LOGFILE=cr_c%C%_r%R%_proc%TB%
+ * </pre>
+ * 
+ * Plain {@code KEY=value} arguments are passed to every run. Arguments of
+ * the form {@code KEY=[v1,v2,...]} are sweep dimensions, and the runs are
+ * their cartesian product. Several keys can be swept together, e.g.,
+ * {@code C,R=[4:4,8:8]} gives the runs C=4,R=4 and C=8,R=8. In
+ * {@code LOGFILE}, {@code %KEY%} is replaced by the run's value of KEY. If
+ * {@code LOGFILE} (or the one in the config file) contains no such
+ * placeholder, each swept key and its value are appended to it. Each run's standard output goes to {@code LOGFILE.out}.
+ * 
+ * The peernet engine is a process-wide singleton, so runs in one JVM are
+ * executed one after the other, sharing the warmed-up JIT and any matrix
+ * loaded by {@link MatrixLoader}. With {@code -j}, the runs are spread over
+ * that many worker JVMs running concurrently.
+ */
+public class Sweep
+{
+  private static final String LOGFILE = "LOGFILE";
+
+  private static long initialNodeId;
+  private static boolean firstRun = true;
+
+
+
+  public static void main(String[] args) throws Exception
+  {
+    int workers = 1;
+    int slice = 0;
+    int slices = 1;
+
+    int i = 0;
+    while (i < args.length && args[i].startsWith("-"))
+    {
+      if (args[i].equals("-j"))
+        workers = Integer.parseInt(args[++i]);
+      else if (args[i].equals("--slice"))  // internal, used by worker JVMs
+      {
+        String[] s = args[++i].split("/");
+        slice = Integer.parseInt(s[0]);
+        slices = Integer.parseInt(s[1]);
+      }
+      else
+        usage();
+      i++;
+    }
+    if (i >= args.length)
+      usage();
+
+    String[] grid = Arrays.copyOfRange(args, i, args.length);
+    List<String[]> runs = expand(grid);
+    System.err.println("Sweep: "+runs.size()+" runs");
+
+    int failed;
+    if (workers > 1)
+      failed = fork(workers, grid);
+    else
+    {
+      failed = 0;
+      for (int r=slice; r<runs.size(); r+=slices)
+        if (!run(runs.get(r)))
+          failed++;
+    }
+
+    if (failed > 0)
+    {
+      System.err.println("Sweep: "+failed+" runs failed");
+      System.exit(1);
+    }
+  }
+
+
+
+  private static void usage()
+  {
+    System.err.println("Usage: java base.Sweep [-j workers] file.cfg [KEY=value | KEY=[v1,v2,...] | K1,K2=[a1:a2,b1:b2,...]]...");
+    System.exit(1);
+  }
+
+
+
+  /**
+   * Expands the sweep dimensions of {@code grid} into the arguments of each
+   * run: the config file, followed by {@code KEY=value} pairs.
+   */
+  static List<String[]> expand(String[] grid)
+  {
+    String cfg = grid[0];
+    List<String> fixed = new ArrayList<>();
+    List<String[]> keys = new ArrayList<>();      // keys of each dimension
+    List<String[][]> values = new ArrayList<>();  // value tuples of each dimension
+    String logfile = null;
+
+    for (int i=1; i<grid.length; i++)
+    {
+      String arg = grid[i];
+      int eq = arg.indexOf('=');
+      if (eq < 0)
+        throw new IllegalArgumentException("Not a KEY=value argument: "+arg);
+      String key = arg.substring(0, eq);
+      String value = arg.substring(eq+1);
+
+      if (value.startsWith("[") && value.endsWith("]"))
+      {
+        String[] dimKeys = key.split(",");
+        String[] tuples = value.substring(1, value.length()-1).split(",");
+        String[][] dimValues = new String[tuples.length][];
+        for (int t=0; t<tuples.length; t++)
+        {
+          dimValues[t] = tuples[t].split(":");
+          if (dimValues[t].length != dimKeys.length)
+            throw new IllegalArgumentException("Expected "+dimKeys.length+" values in '"+tuples[t]+"' of "+arg);
+        }
+        keys.add(dimKeys);
+        values.add(dimValues);
+      }
+      else if (key.equals(LOGFILE))
+        logfile = value;
+      else
+        fixed.add(arg);
+    }
+
+    if (logfile == null)  // take the one of the config file
+      logfile = new ParsedProperties(new String[] {cfg}).getProperty(LOGFILE);
+
+    List<String[]> runs = new ArrayList<>();
+    int[] index = new int[keys.size()];
+    while (true)
+    {
+      List<String> run = new ArrayList<>();
+      run.add(cfg);
+      run.addAll(fixed);
+
+      String name = logfile;
+      boolean placeholders = name != null && name.contains("%");
+      for (int d=0; d<keys.size(); d++)
+      {
+        String[] tuple = values.get(d)[index[d]];
+        for (int k=0; k<tuple.length; k++)
+        {
+          String key = keys.get(d)[k];
+          run.add(key+"="+tuple[k]);
+          if (name == null)
+            continue;
+          if (placeholders)
+            name = name.replace("%"+key+"%", tuple[k]);
+          else
+            name += "_"+key+tuple[k];
+        }
+      }
+      if (name != null)
+        run.add(LOGFILE+"="+name);
+      runs.add(run.toArray(new String[0]));
+
+      // next combination, last dimension varying fastest
+      int d = keys.size()-1;
+      while (d >= 0 && ++index[d] == values.get(d).length)
+        index[d--] = 0;
+      if (d < 0)
+        break;
+    }
+    return runs;
+  }
+
+
+
+  /**
+   * Launches {@code workers} worker JVMs, each executing every
+   * {@code workers}-th run of the grid, and waits for them.
+   * 
+   * @return The number of workers that failed.
+   */
+  private static int fork(int workers, String[] grid) throws IOException, InterruptedException
+  {
+    String java = System.getProperty("java.home")+"/bin/java";
+    List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+
+    Process[] processes = new Process[workers];
+    for (int w=0; w<workers; w++)
+    {
+      List<String> command = new ArrayList<>();
+      command.add(java);
+      command.addAll(jvmArgs);
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(Sweep.class.getName());
+      command.add("--slice");
+      command.add(w+"/"+workers);
+      command.addAll(Arrays.asList(grid));
+      processes[w] = new ProcessBuilder(command).inheritIO().start();
+    }
+
+    int failed = 0;
+    for (Process p: processes)
+      if (p.waitFor() != 0)
+        failed++;
+    return failed;
+  }
+
+
+
+  /**
+   * Executes a single run in this JVM.
+   * 
+   * @return {@code True}, if the run completed.
+   */
+  public static boolean run(String[] args)
+  {
+    System.err.println("Sweep: running "+String.join(" ", args));
+
+    PrintStream stdout = System.out;
+    try
+    {
+      resetConfiguration();
+      Configuration.setConfig(new ParsedProperties(args));
+      resetState();
+
+      String logfile = Configuration.getString(LOGFILE, "");
+      if (!logfile.isEmpty())
+        System.setOut(new PrintStream(new FileOutputStream(logfile+".out"), false));
+
+      Engine.instance().startExperiment();
+      return true;
+    }
+    catch (MissingParameterException | IllegalParameterException e)
+    {
+      System.err.println(e.getMessage());
+      return false;
+    }
+    catch (IOException | ReflectiveOperationException | RuntimeException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+    finally
+    {
+      if (System.out != stdout)
+      {
+        System.out.close();
+        System.setOut(stdout);
+      }
+    }
+  }
+
+
+
+  /**
+   * Drops the previous run's configuration, which peernet only allows to be
+   * set once.
+   */
+  private static void resetConfiguration() throws ReflectiveOperationException
+  {
+    Field config = Configuration.class.getDeclaredField("config");
+    config.setAccessible(true);
+    config.set(null, null);
+  }
+
+
+
+  /**
+   * Brings all process-wide state back to how a fresh JVM would have it,
+   * so that a run gives exactly the same results as with {@code ./go}.
+   * 
+   * Peernet only expects a single experiment per JVM: its clock, end time,
+   * and node ID counter cannot be reset through its API, hence the reflection.
+   */
+  private static void resetState()
+  {
+    try
+    {
+      Field time = CommonState.class.getDeclaredField("time");
+      Field endTime = CommonState.class.getDeclaredField("endTime");
+      Field counterID = Node.class.getDeclaredField("counterID");
+      time.setAccessible(true);
+      endTime.setAccessible(true);
+      counterID.setAccessible(true);
+
+      if (firstRun)
+      {
+        initialNodeId = counterID.getLong(null);
+        firstRun = false;
+      }
+      time.setLong(null, 0);
+      endTime.setLong(null, -1);
+      counterID.setLong(null, initialNodeId);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      throw new RuntimeException("Cannot reset peernet state: "+e);
+    }
+
+    CommonState.initializeRandom(Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis()));
+
+    // The rest of the simulation's state lives in its SimulationContext,
+    // except for the latency matrix, which may be for another network
+    LatencyMatrix.reset();
+  }
+}
@@ -0,0 +1,98 @@
+package base;
+
+import java.util.Arrays;
+
+import base.BaseDissemination.MSGType;
+import base.BaseDissemination.Message;
+
+/**
+ * Messages and bytes each node sent and received, per message type, and
+ * the duplicate headers and bodies it received, i.e., those of blocks whose
+ * header or body it already had. Used by {@link Stats} with parameter
+ * {@code traffic}, which installs it in the {@link SimulationContext}.
+ *
+ * Counters are plain arrays, indexed by node ID, and by node ID and message
+ * type. Each node's counters are only updated while processing one of its
+ * own events, so the threads of a {@link ParallelKernel} never share them.
+ * Deliveries computed by a {@link DeliverySolver} send no messages, and are
+ * not counted.
+ */
+class Traffic
+{
+  static final int TYPES = MSGType.values().length;
+
+  final int[] messagesSent;     // at node*TYPES+type
+  final long[] bytesSent;       // at node*TYPES+type
+  final int[] messagesReceived; // at node*TYPES+type
+  final long[] bytesReceived;   // at node*TYPES+type
+  final int[] duplicateHeaders;
+  final int[] duplicateBodies;
+  final long[] bytesWasted;     // by duplicate headers and bodies
+
+
+
+  Traffic(int networkSize)
+  {
+    messagesSent = new int[networkSize*TYPES];
+    bytesSent = new long[networkSize*TYPES];
+    messagesReceived = new int[networkSize*TYPES];
+    bytesReceived = new long[networkSize*TYPES];
+    duplicateHeaders = new int[networkSize];
+    duplicateBodies = new int[networkSize];
+    bytesWasted = new long[networkSize];
+  }
+
+
+
+  void sent(int node, Message msg)
+  {
+    int i = node*TYPES + msg.type.ordinal();
+    messagesSent[i]++;
+    bytesSent[i] += msg.size;
+  }
+
+
+
+  /**
+   * Counts {@code msg} as received by {@code node}, and as a duplicate if
+   * {@code duplicate}.
+   */
+  void received(int node, Message msg, boolean duplicate)
+  {
+    int i = node*TYPES + msg.type.ordinal();
+    messagesReceived[i]++;
+    bytesReceived[i] += msg.size;
+
+    if (duplicate)
+    {
+      if (msg.type == MSGType.DN__RECEIVE_AND_PROCESS_HEADER)
+        duplicateHeaders[node]++;
+      else
+        duplicateBodies[node]++;
+      bytesWasted[node] += msg.size;
+    }
+  }
+
+
+
+  long sum(long[] counters, int node)
+  {
+    long sum = 0;
+    for (int i=node*TYPES; i<(node+1)*TYPES; i++)
+      sum += counters[i];
+    return sum;
+  }
+
+
+
+  void clear()
+  {
+    Arrays.fill(messagesSent, 0);
+    Arrays.fill(bytesSent, 0);
+    Arrays.fill(messagesReceived, 0);
+    Arrays.fill(bytesReceived, 0);
+    Arrays.fill(duplicateHeaders, 0);
+    Arrays.fill(duplicateBodies, 0);
+    Arrays.fill(bytesWasted, 0);
+  }
+}
@@ -0,0 +1,169 @@
+package base;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.CommonState;
+import peernet.core.Engine;
+import peernet.core.Engine.AddressType;
+import peernet.core.Node;
+import peernet.transport.Address;
+import peernet.transport.AddressSim;
+
+/**
+ * Transport computing a message's delay as the one-way latency between its
+ * sender and receiver (see {@link LatencyMatrix} and
+ * {@link SizedTransport#transferLatency}),
+ * passed through a list of {@link TransportStage}s.
+ * 
+ * The stages are listed in parameter {@code stages}, separated by commas or
+ * spaces, and applied in that order. Available stages are {@code loss},
+ * {@code processing}, {@code bandwidth}, and {@code jitter}.
+ * 
+ * Each node's address is created once, on its first send, so sending does
+ * no allocation or modulo work.
+ */
+public class TransportPipeline extends SizedTransport
+{
+  private static final String PAR_STAGES = "stages";
+
+  private final TransportStage[] stages;
+
+  private LatencyMatrix matrix;
+  private AddressSim[] addressOf = new AddressSim[0];
+
+
+
+  public TransportPipeline(String prefix)
+  {
+    this(prefix, "");
+  }
+
+
+
+  /**
+   * @param prefix
+   * @param defaultStages The stages to use if parameter {@code stages} is not set
+   */
+  protected TransportPipeline(String prefix, String defaultStages)
+  {
+    assert Engine.getAddressType()==AddressType.SIM;
+
+    String list = Configuration.getString(prefix + "." + PAR_STAGES, defaultStages).trim();
+    String[] names = list.isEmpty() ? new String[0] : list.split("[,\\s]+");
+
+    stages = new TransportStage[names.length];
+    for (int i=0; i<names.length; i++)
+      stages[i] = createStage(prefix, names[i]);
+  }
+
+
+
+  private static TransportStage createStage(String prefix, String name)
+  {
+    switch (name)
+    {
+      case "loss": return new TransportStage.Loss(prefix);
+      case "processing": return new TransportStage.Processing(prefix);
+      case "bandwidth": return new TransportStage.Bandwidth(prefix);
+      case "jitter": return new TransportStage.Jitter(prefix);
+      default:
+        throw new IllegalParameterException(prefix + "." + PAR_STAGES, "Unknown transport stage: " + name);
+    }
+  }
+
+
+
+  /**
+   * Caches the address of node {@code node}, and picks up the latency
+   * matrix if needed.
+   */
+  private void register(Node node)
+  {
+    int id = (int) node.getID();
+    if (id >= addressOf.length)
+      addressOf = Arrays.copyOf(addressOf, Math.max(id+1, 2*addressOf.length));
+    addressOf[id] = new AddressSim(node);
+
+    prepare(node);
+  }
+
+
+
+  /**
+   * On the first call, picks up the latency matrix and the simulation's
+   * settings, through any node {@code node}.
+   */
+  void prepare(Node node)
+  {
+    if (matrix != null)
+      return;
+
+    matrix = LatencyMatrix.get();
+
+    SimulationContext context = SimulationContext.of(node);
+    if (context != null)
+      extra_tcp_trips = context.extraTcpTrips;
+  }
+
+
+
+  @Override
+  protected void send(Node src, Address dest, int pid, Object payload, int bytes)
+  {
+    int sender = (int) src.getID();
+    Node receiverNode = ((AddressSim) dest).node;
+    int receiver = (int) receiverNode.getID();
+
+    if (sender >= addressOf.length || addressOf[sender] == null)
+      register(src);
+    if (receiver >= addressOf.length || addressOf[receiver] == null)
+      register(receiverNode);
+
+    int delay = delay(sender, receiver, bytes, CommonState.r);
+    if (delay < 0)
+      return;
+
+    addEventIn(delay, addressOf[sender], receiverNode, pid, payload);
+  }
+
+
+
+  /**
+   * Returns the delay of a message of {@code bytes} from node {@code sender}
+   * to node {@code receiver}, or -1 if it is lost. Stages drawing random
+   * numbers draw them from {@code r}. Requires {@link #prepare(Node)}.
+   */
+  int delay(int sender, int receiver, int bytes, Random r)
+  {
+    int latency = matrix.nodeLatency(sender, receiver);
+    if (latency < 0) // if latency < 0, it's a broken link
+      return -1;
+
+    int delay = transferLatency(latency, bytes);
+    for (TransportStage stage: stages)
+    {
+      delay = stage.apply(sender, receiver, bytes, delay, r);
+      if (delay < 0)
+        return -1;
+    }
+
+    return delay;
+  }
+
+
+
+  /**
+   * @return {@code True}, if no stage draws random numbers, so a message's
+   *         delay only depends on its sender, receiver, and size.
+   */
+  boolean isDeterministic()
+  {
+    for (TransportStage stage: stages)
+      if (stage.isRandom())
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,150 @@
+package base;
+
+import java.util.Random;
+
+import peernet.config.Configuration;
+import peernet.core.CommonState;
+import peernet.core.Network;
+
+/**
+ * One stage of a {@link TransportPipeline}. Each stage gets the delay
+ * computed by the previous ones for a message, and returns it adjusted, or
+ * -1 to drop the message.
+ * 
+ * Stages read their parameters from the prefix of the transport they belong to.
+ */
+public interface TransportStage
+{
+  /**
+   * @param sender ID of the sending node
+   * @param receiver ID of the receiving node
+   * @param bytes Size of the message
+   * @param delay Delay computed so far (non-negative)
+   * @param r Random number generator to draw from
+   * @return The adjusted delay, or -1 if the message is lost
+   */
+  public int apply(int sender, int receiver, int bytes, int delay, Random r);
+
+
+
+  /**
+   * @return {@code True}, if {@link #apply} draws random numbers, so a
+   *         message's delay is not a function of its sender, receiver, and size.
+   */
+  public default boolean isRandom()
+  {
+    return false;
+  }
+
+
+
+  /**
+   * Drops {@code failures} percent of all messages.
+   */
+  public static class Loss implements TransportStage
+  {
+    private static final String PAR_FAILURES = "failures";
+
+    private final int failures;
+
+    public Loss(String prefix)
+    {
+      failures = Configuration.getInt(prefix + "." + PAR_FAILURES);
+    }
+
+    @Override
+    public int apply(int sender, int receiver, int bytes, int delay, Random r)
+    {
+      return r.nextInt(100) < failures ? -1 : delay;
+    }
+
+    @Override
+    public boolean isRandom()
+    {
+      return true;
+    }
+  }
+
+
+
+  /**
+   * Adds to large messages the processing time of the sender's router,
+   * drawn once per router uniformly from [{@code processingMin},
+   * {@code processingMax}), so that nodes on the same router share it.
+   */
+  public static class Processing implements TransportStage
+  {
+    private static final String PAR_MIN = "processingMin";
+    private static final String PAR_MAX = "processingMax";
+
+    private final int[] processingTimes;
+
+    public Processing(String prefix)
+    {
+      int min = Configuration.getInt(prefix + "." + PAR_MIN);
+      int max = Configuration.getInt(prefix + "." + PAR_MAX);
+      processingTimes = new int[Network.size()];
+      for (int i = 0; i < processingTimes.length; i++)
+        processingTimes[i] = CommonState.r.nextInt(max-min) + min;
+    }
+
+    @Override
+    public int apply(int sender, int receiver, int bytes, int delay, Random r)
+    {
+      return SizedTransport.isLarge(bytes) ? delay + processingTimes[LatencyMatrix.get().router(sender)] : delay;
+    }
+  }
+
+
+
+  /**
+   * Adds the time to push the message through the sender's uplink of
+   * {@code bandwidth} kbit/s.
+   */
+  public static class Bandwidth implements TransportStage
+  {
+    private static final String PAR_BANDWIDTH = "bandwidth";
+
+    private final double msecPerByte;
+
+    public Bandwidth(String prefix)
+    {
+      msecPerByte = 8.0 / Configuration.getInt(prefix + "." + PAR_BANDWIDTH);
+    }
+
+    @Override
+    public int apply(int sender, int receiver, int bytes, int delay, Random r)
+    {
+      return delay + (int) (bytes * msecPerByte);
+    }
+  }
+
+
+
+  /**
+   * Adds a random delay, uniformly picked from [0, {@code jitter}] msec.
+   */
+  public static class Jitter implements TransportStage
+  {
+    private static final String PAR_JITTER = "jitter";
+
+    private final int jitter;
+
+    public Jitter(String prefix)
+    {
+      jitter = Configuration.getInt(prefix + "." + PAR_JITTER);
+    }
+
+    @Override
+    public int apply(int sender, int receiver, int bytes, int delay, Random r)
+    {
+      return delay + r.nextInt(jitter+1);
+    }
+
+    @Override
+    public boolean isRandom()
+    {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package base;
+
+import java.util.Arrays;
+
+import peernet.core.Network;
+
+/**
+ * Vivaldi network coordinates of all nodes (Dabek et al., SIGCOMM 2004),
+ * learned from the round trip times of body requests: from a node sending
+ * a request for a block's body to an upstream peer, until the body arrives
+ * from it. These include the body's transmission, so they overestimate the
+ * latency, but equally so for all peers. See
+ * {@link SimulationContext#enableCoordinates}.
+ *
+ * Samples are only recorded while disseminating, each node in its own
+ * slots, and applied to the coordinates by {@link #update}, so that nodes
+ * do not read coordinates that another thread of a {@link ParallelKernel}
+ * may be updating. Arrays are allocated by {@link #prepare}, on the
+ * engine's thread, before any block is disseminated.
+ *
+ * Coordinates are in {@value #DIMENSIONS} dimensions, and all start at the
+ * origin, moving apart in a direction hashed from the two node IDs.
+ * Updates allocate nothing.
+ */
+public class Vivaldi
+{
+  static private final int DIMENSIONS = 3;
+  static private final double CC = 0.25;  // coordinate adjustment
+  static private final double CE = 0.25;  // error adjustment
+  static private final int PENDING = 16;  // outstanding requests remembered per node
+
+  private double[] coords;     // at node*DIMENSIONS
+  private double[] errors;     // per node
+  private int[] updates;       // per node, number of samples applied
+
+  private int[] pendingPeer;   // at node*PENDING, ring of outstanding requests
+  private int[] pendingBlock;
+  private long[] pendingTime;
+  private int[] nextPending;   // per node
+
+  private int[][] samples;     // per node, pairs of peer and round trip time
+  private int[] sampleCount;   // per node, number of ints in samples
+
+  private final double[] direction = new double[DIMENSIONS];  // scratch for updates, on the engine's thread
+
+
+
+  Vivaldi()
+  {
+  }
+
+
+
+  /**
+   * Allocates the arrays for all nodes, unless done already.
+   */
+  void prepare()
+  {
+    if (coords != null)
+      return;
+
+    int n = Network.size();
+    coords = new double[n*DIMENSIONS];
+    errors = new double[n];
+    Arrays.fill(errors, 1);
+    updates = new int[n];
+    pendingPeer = new int[n*PENDING];
+    pendingBlock = new int[n*PENDING];
+    pendingTime = new long[n*PENDING];
+    Arrays.fill(pendingPeer, -1);
+    nextPending = new int[n];
+    samples = new int[n][];
+    sampleCount = new int[n];
+  }
+
+
+
+  /**
+   * Records that {@code node} requested the body of {@code blockId} from
+   * {@code peer} at {@code time}.
+   */
+  void requested(int node, int peer, int blockId, long time)
+  {
+    int i = node*PENDING + nextPending[node];
+    nextPending[node] = (nextPending[node]+1) % PENDING;
+    pendingPeer[i] = peer;
+    pendingBlock[i] = blockId;
+    pendingTime[i] = time;
+  }
+
+
+
+  /**
+   * Records that {@code node} received the body of {@code blockId} from
+   * {@code peer} at {@code time}, and thus a round trip time sample, if it
+   * requested it.
+   */
+  void received(int node, int peer, int blockId, long time)
+  {
+    for (int i=node*PENDING; i<(node+1)*PENDING; i++)
+    {
+      if (pendingPeer[i] == peer && pendingBlock[i] == blockId)
+      {
+        int[] s = samples[node];
+        if (s == null || sampleCount[node] == s.length)
+          samples[node] = s = Arrays.copyOf(s == null ? new int[0] : s, Math.max(16, 2*sampleCount[node]));
+        s[sampleCount[node]++] = peer;
+        s[sampleCount[node]++] = (int) (time - pendingTime[i]);
+        pendingPeer[i] = -1;
+        return;
+      }
+    }
+  }
+
+
+
+  /**
+   * Moves the coordinates of {@code node} according to the samples it
+   * recorded since the last call.
+   */
+  public void update(int node)
+  {
+    prepare();
+
+    int[] s = samples[node];
+    for (int k=0; k<sampleCount[node]; k+=2)
+      update(node, s[k], Math.max(1, s[k+1]));
+    sampleCount[node] = 0;
+  }
+
+
+
+  private void update(int node, int peer, double rtt)
+  {
+    double distance = distance(node, peer);
+
+    // Weigh the sample by the confidence of the node relative to the peer
+    double w = errors[node] / (errors[node] + errors[peer]);
+    double sampleError = Math.abs(distance - rtt) / rtt;
+    errors[node] = sampleError*CE*w + errors[node]*(1 - CE*w);
+
+    // Move along the unit vector away from the peer by the scaled error
+    double step = CC * w * (rtt - distance);
+    double norm = 0;
+    for (int d=0; d<DIMENSIONS; d++)
+    {
+      direction[d] = coords[node*DIMENSIONS + d] - coords[peer*DIMENSIONS + d];
+      norm += direction[d]*direction[d];
+    }
+    if (norm == 0)
+    {
+      // Coinciding nodes move apart in a direction fixed by their IDs
+      long h = (long) node << 32 | peer;
+      for (int d=0; d<DIMENSIONS; d++)
+      {
+        h = mix(h + 0x9e3779b97f4a7c15L);
+        direction[d] = (h >>> 11) * 0x1.0p-53 - 0.5;
+        norm += direction[d]*direction[d];
+      }
+      if (norm == 0)
+        return;  // all components hashed to exactly 0.5, practically never
+    }
+    norm = Math.sqrt(norm);
+    for (int d=0; d<DIMENSIONS; d++)
+      coords[node*DIMENSIONS + d] += step * direction[d] / norm;
+
+    updates[node]++;
+  }
+
+
+
+  /**
+   * Scrambles the bits of {@code z}, as the finalizer of SplitMix64.
+   */
+  static private long mix(long z)
+  {
+    z = (z ^ z>>>30) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ z>>>27) * 0x94d049bb133111ebL;
+    return z ^ z>>>31;
+  }
+
+
+
+  private double distance(int a, int b)
+  {
+    double sum = 0;
+    for (int d=0; d<DIMENSIONS; d++)
+    {
+      double delta = coords[a*DIMENSIONS + d] - coords[b*DIMENSIONS + d];
+      sum += delta*delta;
+    }
+    return Math.sqrt(sum);
+  }
+
+
+
+  /**
+   * Returns the round trip time between nodes {@code a} and {@code b}
+   * predicted by their coordinates, or {@code Double.POSITIVE_INFINITY} if
+   * either has no samples yet.
+   */
+  public double predict(int a, int b)
+  {
+    if (coords == null || updates[a] == 0 || updates[b] == 0)
+      return Double.POSITIVE_INFINITY;
+    return distance(a, b);
+  }
+}
@@ -0,0 +1,329 @@
+package peernet.core;
+
+import java.util.Arrays;
+
+import peernet.config.IllegalParameterException;
+import peernet.transport.Address;
+
+/**
+ * Calendar queue replacing the engine's binary {@link Heap}, to be installed
+ * by {@code base.EventQueue}. It lives in package {@code peernet.core}, as
+ * {@code Heap} is package private.
+ *
+ * The engine's event times are milliseconds shifted left by
+ * {@code engine.timebits}, with random low bits breaking ties. Events are
+ * kept in a wheel of {@code buckets} lists, one per millisecond modulo
+ * {@code buckets}, so inserting is O(1). When the events of one millisecond
+ * are due, they are taken out of their bucket and sorted by their tie
+ * breaking bits, and then popped one by one. As long as most events are
+ * less than {@code buckets} milliseconds ahead, both operations take O(1)
+ * amortized time. Events further ahead stay in their bucket while the
+ * wheel goes round.
+ *
+ * All events are stored in primitive parallel arrays, linked by index, and
+ * their slots are recycled.
+ *
+ * Events of exactly the same time, tie breaking bits included, are popped
+ * in the order they were added, whereas {@code Heap}'s order depends on its
+ * layout. With the default 8 tie breaking bits, such collisions are common
+ * in busy milliseconds, so results differ from {@code Heap}'s in their
+ * details. With enough bits (e.g., {@code engine.timebits 30}), they are
+ * identical.
+ */
+public class CalendarHeap extends Heap
+{
+  static private final int NONE = -1;
+
+  private final int shift;  // tie breaking bits of event times
+  private final long mask;  // buckets-1
+
+  // Events, linked through 'next' in their bucket, or in the free list
+  private long[] times = new long[1024];
+  private Address[] srcs = new Address[1024];
+  private Node[] nodes = new Node[1024];
+  private byte[] pids = new byte[1024];
+  private Object[] events = new Object[1024];
+  private int[] next = new int[1024];
+  private int used = 0;       // slots ever used
+  private int free = NONE;    // first recycled slot
+  private int size = 0;
+
+  private final int[] head;
+  private final int[] tail;
+
+  // Events of milliseconds up to 'now', sorted by time, to be popped from 'runStart'
+  private int[] run = new int[64];
+  private int runStart = 0;
+  private int runEnd = 0;
+  private long now = -1;
+  private long[] keys = new long[64];  // scratch, for sorting the run
+  private int[] sorted = new int[64];
+
+  private final Event ev = new Event();
+
+
+
+  /**
+   * @param buckets Number of buckets, rounded up to a power of two
+   */
+  public CalendarHeap(int buckets)
+  {
+    if (Engine.rbits > 31)
+      throw new IllegalParameterException("engine.timebits", "A calendar queue supports up to 31 time bits");
+    shift = Engine.rbits;
+
+    int n = Integer.highestOneBit(Math.max(buckets-1, 1)) << 1;
+    mask = n-1;
+    head = new int[n];
+    tail = new int[n];
+    Arrays.fill(head, NONE);
+    Arrays.fill(tail, NONE);
+  }
+
+
+
+  /**
+   * Replaces the heap of the running {@link EngineSim} by a calendar queue
+   * of {@code buckets} buckets, moving over any events already scheduled.
+   */
+  public static void install(int buckets)
+  {
+    install(new CalendarHeap(buckets));
+  }
+
+
+
+  static void install(Heap heap)
+  {
+    EngineSim engine = (EngineSim) Engine.instance();
+
+    Event e;
+    while ((e = engine.simHeap.removeFirst()) != null)
+      heap.add(e.time, e.src, e.node, e.pid, e.event);
+
+    engine.simHeap = heap;
+  }
+
+
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+
+
+  @Override
+  public void add(long time, Address src, Node node, byte pid, Object event)
+  {
+    int i = allocate();
+    times[i] = time;
+    srcs[i] = src;
+    nodes[i] = node;
+    pids[i] = pid;
+    events[i] = event;
+    size++;
+
+    if (time>>shift <= now)  // due already
+      insertIntoRun(i);
+    else
+    {
+      int b = (int) (time>>shift & mask);
+      next[i] = NONE;
+      if (head[b] == NONE)
+        head[b] = i;
+      else
+        next[tail[b]] = i;
+      tail[b] = i;
+    }
+  }
+
+
+
+  @Override
+  public Event removeFirst()
+  {
+    if (size == 0)
+      return null;
+    if (runStart == runEnd)
+      advance();
+
+    int i = run[runStart++];
+    ev.time = times[i];
+    ev.src = srcs[i];
+    ev.node = nodes[i];
+    ev.pid = pids[i];
+    ev.event = events[i];
+    release(i);
+    size--;
+
+    return ev;
+  }
+
+
+
+  @Override
+  public long getNextTime()
+  {
+    if (size == 0)
+      return Long.MAX_VALUE;
+    if (runStart == runEnd)
+      advance();
+
+    return times[run[runStart]];
+  }
+
+
+
+  /**
+   * Loads into the run the events of the next millisecond that has any.
+   * Requires a non-empty queue and an empty run.
+   */
+  private void advance()
+  {
+    runStart = runEnd = 0;
+
+    for (long ms=now+1; ms<=now+1+mask; ms++)
+      if (extract(ms))
+        return;
+
+    // A whole turn of the wheel found nothing: jump to the earliest event
+    long earliest = Long.MAX_VALUE;
+    for (int b=0; b<=mask; b++)
+      for (int i=head[b]; i!=NONE; i=next[i])
+        earliest = Math.min(earliest, times[i]>>shift);
+    extract(earliest);
+  }
+
+
+
+  /**
+   * Moves the events of millisecond {@code ms} from their bucket into the
+   * run, sorted by time, and those of equal time in the order they were
+   * added.
+   *
+   * @return {@code True}, if there were any.
+   */
+  private boolean extract(long ms)
+  {
+    int b = (int) (ms & mask);
+    int prev = NONE;
+    int n = 0;
+    for (int i=head[b]; i!=NONE; i=next[i])
+    {
+      if (times[i]>>shift != ms)
+      {
+        prev = i;
+        continue;
+      }
+
+      // unlink i
+      if (prev == NONE)
+        head[b] = next[i];
+      else
+        next[prev] = next[i];
+      if (tail[b] == i)
+        tail[b] = prev;
+
+      if (n == run.length)
+        run = Arrays.copyOf(run, 2*n);
+      run[n++] = i;
+    }
+
+    if (n == 0)
+      return false;
+
+    // Sort by the tie breaking bits, then by position in the bucket
+    if (keys.length < n)
+    {
+      keys = new long[run.length];
+      sorted = new int[run.length];
+    }
+    long low = (1L<<shift) - 1;
+    for (int k=0; k<n; k++)
+      keys[k] = (times[run[k]] & low) << 32 | k;
+    Arrays.sort(keys, 0, n);
+
+    for (int k=0; k<n; k++)
+      sorted[k] = run[(int) keys[k]];
+    System.arraycopy(sorted, 0, run, 0, n);
+
+    runEnd = n;
+    now = ms;
+    return true;
+  }
+
+
+
+  /**
+   * Inserts event {@code i}, of a millisecond that is due, into the run,
+   * after all events of the same or earlier time.
+   */
+  private void insertIntoRun(int i)
+  {
+    if (runEnd == run.length)
+    {
+      if (runStart > 0)
+      {
+        System.arraycopy(run, runStart, run, 0, runEnd-runStart);
+        runEnd -= runStart;
+        runStart = 0;
+      }
+      else
+        run = Arrays.copyOf(run, 2*run.length);
+    }
+
+    int k = runEnd;
+    while (k > runStart && times[run[k-1]] > times[i])
+    {
+      run[k] = run[k-1];
+      k--;
+    }
+    run[k] = i;
+    runEnd++;
+  }
+
+
+
+  private int allocate()
+  {
+    if (free != NONE)
+    {
+      int i = free;
+      free = next[i];
+      return i;
+    }
+
+    if (used == times.length)
+    {
+      int n = 2*used;
+      times = Arrays.copyOf(times, n);
+      srcs = Arrays.copyOf(srcs, n);
+      nodes = Arrays.copyOf(nodes, n);
+      pids = Arrays.copyOf(pids, n);
+      events = Arrays.copyOf(events, n);
+      next = Arrays.copyOf(next, n);
+    }
+    return used++;
+  }
+
+
+
+  private void release(int i)
+  {
+    srcs[i] = null;
+    nodes[i] = null;
+    events[i] = null;
+    next[i] = free;
+    free = i;
+  }
+
+
+
+  @Override
+  public String toString()
+  {
+    return "CalendarHeap: "+size+" events, "+(mask+1)+" buckets";
+  }
+}
@@ -0,0 +1,144 @@
+package peernet.core;
+
+import java.util.Arrays;
+
+import peernet.config.ParsedProperties;
+import peernet.transport.Address;
+
+/**
+ * Compares the engine's binary {@link Heap} with a {@link CalendarHeap} on
+ * the event queue workload of a real simulation.
+ *
+ * <pre>
+ * java peernet.core.HeapBenchmark [-b buckets] [-r repetitions] file.cfg [KEY=value]...
+ * </pre>
+ *
+ * The simulation is first run once (see {@code base.Sweep}), recording every
+ * insertion and removal of its event queue. The recorded sequence is then
+ * replayed on both queues a few times, without running any protocols,
+ * and the time per operation of each is reported. Both must pop the same
+ * event times.
+ */
+public class HeapBenchmark implements Control
+{
+  /**
+   * A heap recording the operations on it: the time of each insertion, or
+   * -1 for each removal.
+   */
+  static private final class Recorder extends Heap
+  {
+    long[] ops = new long[1<<20];
+    int numOps = 0;
+
+    private void record(long op)
+    {
+      if (numOps == ops.length)
+        ops = Arrays.copyOf(ops, 2*numOps);
+      ops[numOps++] = op;
+    }
+
+    @Override
+    public void add(long time, Address src, Node node, byte pid, Object event)
+    {
+      record(time);
+      super.add(time, src, node, pid, event);
+    }
+
+    @Override
+    public Event removeFirst()
+    {
+      Event e = super.removeFirst();
+      if (e != null)
+        record(-1);
+      return e;
+    }
+  }
+
+  private static Recorder recorder;
+
+
+
+  /**
+   * Initializer installing the recorder, injected by {@link #main}.
+   */
+  public HeapBenchmark(String prefix)
+  {
+  }
+
+
+
+  @Override
+  public boolean execute()
+  {
+    recorder = new Recorder();
+    CalendarHeap.install(recorder);
+    return false;
+  }
+
+
+
+  public static void main(String[] args) throws Exception
+  {
+    int buckets = 2048;
+    int repetitions = 5;
+
+    int i = 0;
+    while (i < args.length && args[i].startsWith("-"))
+    {
+      if (args[i].equals("-b"))
+        buckets = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-r"))
+        repetitions = Integer.parseInt(args[++i]);
+      else
+        usage();
+      i++;
+    }
+    if (i >= args.length)
+      usage();
+
+    // Run the simulation, with the recorder as its first initializer
+    String[] run = Arrays.copyOfRange(args, i, args.length+2);
+    String inits = new ParsedProperties(Arrays.copyOfRange(args, i, args.length)).getProperty("include.init");
+    run[run.length-2] = "init.queue_recorder="+HeapBenchmark.class.getName();
+    run[run.length-1] = "include.init=queue_recorder"+(inits == null ? "" : ", "+inits);
+    if (!base.Sweep.run(run))
+      System.exit(1);
+
+    long[] ops = Arrays.copyOf(recorder.ops, recorder.numOps);
+    recorder = null;
+    System.out.println("# "+ops.length+" operations");
+    System.out.println("#queue\tns/op\tchecksum");
+
+    for (int r=0; r<repetitions; r++)
+    {
+      replay("heap", new Heap(), ops);
+      replay("calendar", new CalendarHeap(buckets), ops);
+    }
+  }
+
+
+
+  private static void usage()
+  {
+    System.err.println("Usage: java peernet.core.HeapBenchmark [-b buckets] [-r repetitions] file.cfg [KEY=value]...");
+    System.exit(1);
+  }
+
+
+
+  private static void replay(String name, Heap heap, long[] ops)
+  {
+    long checksum = 0;
+    long start = System.nanoTime();
+    for (long op: ops)
+    {
+      if (op >= 0)
+        heap.add(op, null, null, (byte) 0, null);
+      else
+        checksum = 31*checksum + heap.removeFirst().time;
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(name+"\t"+String.format("%.1f", elapsed/(double)ops.length)+"\t"+Long.toHexString(checksum));
+  }
+}
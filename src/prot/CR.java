@@ -7,7 +7,9 @@ package prot;
 import java.util.ArrayList;
 
 import base.BaseDissemination;
-import base.Stats;
+import base.DeliverySolver;
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.core.Peer;
 import peernet.transport.Address;
 
@@ -16,12 +18,25 @@ import peernet.transport.Address;
  * No scoring, no calibration rounds.
  * Basically this is the class to run the basic CR model.
  * 
+ * As the overlay is static, delivery times can be computed directly,
+ * rather than simulated, see {@link DeliverySolver}. Parameter
+ * {@code solver} selects whether to simulate ({@code off}, the default),
+ * to compute ({@code on}), or to simulate and check the simulation against
+ * the computed times ({@code check}). Checking is only meaningful with
+ * transports that neither lose messages nor add jitter.
+ * 
  * @author spyros
  *
  */
 public class CR extends BaseDissemination
 {
+  private static final String PAR_SOLVER = "solver";
+
   ArrayList<Peer> upstreamPeers;
+
+  /** Shared by all clones, or null to simulate. */
+  private final DeliverySolver solver;
+  private final boolean checkSolver;
   //ArrayList<Peer> downstreamPeers;
 
 
@@ -33,6 +48,17 @@ public class CR extends BaseDissemination
     super(prefix);
     upstreamPeers = new ArrayList<>();
     //downstreamPeers = new ArrayList<>();
+
+    String mode = Configuration.getString(prefix+"."+PAR_SOLVER, "off");
+    switch (mode)
+    {
+      case "off": solver = null; break;
+      case "on": solver = new DeliverySolver(false); break;
+      case "check": solver = new DeliverySolver(true); break;
+      default:
+        throw new IllegalParameterException(prefix+"."+PAR_SOLVER, "Expected off, on, or check, not "+mode);
+    }
+    checkSolver = mode.equals("check");
   }
 
 
@@ -54,6 +80,22 @@ public class CR extends BaseDissemination
 
 
 
+  @Override
+  public void generateBlock(int blockId)
+  {
+    if (solver == null)
+      super.generateBlock(blockId);
+    else if (checkSolver)
+    {
+      solver.solve(this, blockId);
+      super.generateBlock(blockId);  // deliveries are checked in hookReceivedBody()
+    }
+    else
+      solver.deliver(this, blockId);
+  }
+
+
+
   @Override
   protected void hookReceivedHeader(int blockId, long relativeTime, int hops, Address from)
   {
@@ -64,7 +106,9 @@ public class CR extends BaseDissemination
   @Override
   protected void hookReceivedBody(int blockId, long relativeTime, int hops)
   {
-    Stats.reportDelivery(blockId, relativeTime, hops);
+    context().reportDelivery(blockId, (int) myNode().getID(), relativeTime, hops);
+    if (checkSolver)
+      solver.check(myNode(), blockId, relativeTime, hops);
     //System.out.println(relativeTime+"\t"+msg.replyTo+" -> "+myNode().getID());
   }
 
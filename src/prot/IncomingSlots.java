@@ -0,0 +1,154 @@
+package prot;
+
+import java.util.Random;
+
+import peernet.core.Network;
+import peernet.core.Peer;
+
+/**
+ * The {@link Perigee} nodes that have free incoming slots, from which
+ * calibration draws new outgoing peers. Shared by all clones of a Perigee
+ * prototype, and built on first use.
+ *
+ * Nodes with free slots are kept in an array, in no particular order, each
+ * node knowing its position, so that a node is added or removed in O(1)
+ * (removal swaps in the last one). Drawing a peer thus only rejects the
+ * node itself and its current neighbors, which are stamped in an array
+ * indexed by node ID for O(1) checks. If that takes too many draws, the
+ * eligible nodes are collected by a scan, so drawing always terminates,
+ * and returns -1 if no node is eligible.
+ */
+public class IncomingSlots
+{
+  private final int numIncoming;
+  private int pid;
+
+  private int[] free;      // nodes with free incoming slots, in [0, count)
+  private int[] position;  // per node, its index in 'free', or -1
+  private int count;
+
+  private int[] stamps;    // per node, the epoch it was last stamped as a neighbor in
+  private int epoch = 0;
+  private int[] eligible;  // scratch for scans
+
+
+
+  IncomingSlots(int numIncoming)
+  {
+    this.numIncoming = numIncoming;
+  }
+
+
+
+  private void init(int pid)
+  {
+    this.pid = pid;
+    int n = Network.size();
+    free = new int[n];
+    position = new int[n];
+    stamps = new int[n];
+    eligible = new int[n];
+    count = 0;
+    for (int i=0; i<n; i++)
+    {
+      assert Network.get(i).getID() == i;
+      position[i] = -1;
+      update(protocol(i));
+    }
+  }
+
+
+
+  private Perigee protocol(int id)
+  {
+    return (Perigee) Network.get(id).getProtocol(pid);
+  }
+
+
+
+  /**
+   * Records the number of incoming peers of {@code node}, after it changed.
+   */
+  void update(Perigee node)
+  {
+    if (free == null)
+      return;  // not built yet
+
+    int id = (int) node.myNode().getID();
+    boolean hasFree = node.incomingSelections.size() < numIncoming;
+    if (hasFree && position[id] == -1)
+    {
+      position[id] = count;
+      free[count++] = id;
+    }
+    else if (!hasFree && position[id] != -1)
+    {
+      int last = free[--count];
+      free[position[id]] = last;
+      position[last] = position[id];
+      position[id] = -1;
+    }
+  }
+
+
+
+  /**
+   * Starts drawing new outgoing peers for {@code node}, stamping its
+   * current neighbors.
+   */
+  void startDrawing(Perigee node)
+  {
+    if (free == null)
+      init(node.myPid());
+
+    epoch++;
+    stamps[(int) node.myNode().getID()] = epoch;
+    for (Peer peer: node.outgoingSelections)
+      stamps[(int) peer.getID()] = epoch;
+    for (Peer peer: node.incomingSelections)
+      stamps[(int) peer.getID()] = epoch;
+  }
+
+
+
+  /**
+   * Returns a random node with free incoming slots, other than the node
+   * given to {@link #startDrawing} and its neighbors, or -1 if there is
+   * none. The node returned is then stamped as a neighbor.
+   */
+  int draw(Random random, int neighbors)
+  {
+    for (int misses=0; misses <= 2*(neighbors+1) && count > 0; misses++)
+    {
+      int id = free[random.nextInt(count)];
+      if (stamps[id] != epoch)
+      {
+        stamps[id] = epoch;
+        return id;
+      }
+    }
+
+    // Too many misses: collect the eligible nodes, if any
+    int n = 0;
+    for (int i=0; i<count; i++)
+      if (stamps[free[i]] != epoch)
+        eligible[n++] = free[i];
+    if (n == 0)
+      return -1;
+
+    int id = eligible[random.nextInt(n)];
+    stamps[id] = epoch;
+    return id;
+  }
+
+
+
+  /**
+   * Puts back node {@code id}, returned by {@link #draw} but not linked to,
+   * so that it can be drawn again.
+   */
+  void release(int id)
+  {
+    stamps[id] = epoch-1;
+  }
+}
@@ -4,6 +4,8 @@
  */
 package prot;
 
+import base.LatencyMatrix;
+import base.SimulationContext;
 import peernet.config.Configuration;
 import peernet.core.CommonState;
 import peernet.core.Control;
@@ -11,13 +13,12 @@ import peernet.core.Linkable;
 import peernet.core.Network;
 import peernet.core.Node;
 import peernet.core.Peer;
-import peernet.transport.RouterNetwork;
 import util.QuickSelect;
 
 
 
 /**
- * Uses latencies in RouterNetwork to determine distances between nodes.
+ * Uses latencies in {@link LatencyMatrix} to determine distances between nodes.
  * Picks for each node {@code c} close neighbors and {@code r}
  * random ones.
  * 
@@ -39,6 +40,7 @@ public class InitializerCR implements Control
   private int paramRup;  // how many of the random peers should be upstream
   private int pid;
   private boolean bidirectional;
+  private QuickSelect qs;
 
   
 
@@ -61,20 +63,6 @@ public class InitializerCR implements Control
 
 
 
-  /**
-   * Convenience function, returning the one-way latency from node {@code i} to node {@code j}.
-   * 
-   * @param i
-   * @param j
-   * @return
-   */
-  private int latency(int i, int j)
-  {
-    return RouterNetwork.getLatency(i % RouterNetwork.getSize(), j % RouterNetwork.getSize());
-  }
-
-
-
   /**
    * Visits all nodes of the network, and equips each node with the required
    * number of close neighbors, that is, neighbors having the lowest RTT to it.
@@ -87,6 +75,11 @@ public class InitializerCR implements Control
       return;
 
     int[] distances = new int[Network.size()];
+    LatencyMatrix matrix = LatencyMatrix.get();
+
+    // Share the QuickSelect of the simulation, if run by a dissemination protocol
+    SimulationContext context = SimulationContext.of(Network.get(0));
+    qs = context != null ? context.quickSelect() : new QuickSelect();
 
     // Go through each and every node
     for (int i=0; i<Network.size(); i++)
@@ -98,7 +91,7 @@ public class InitializerCR implements Control
 
       // Compute RTT distances to all other nodes
       for (int j=0; j<Network.size(); j++)
-        distances[j] = latency(i,j) + latency(j,i);  // round-trip time
+        distances[j] = matrix.nodeRtt(i,j);  // round-trip time
 
       /*
        * Use QuickSelect to efficiently find the 'topK' nodes with lowest latency.
@@ -113,11 +106,11 @@ public class InitializerCR implements Control
        * wild guess.
        */
       int topK = bidirectional ? paramC*5 : paramC+1;
-      QuickSelect.quickSelect(distances, topK);
+      qs.quickSelect(distances, topK);
       if (bidirectional)
       {
         //dump(distances, topK);
-        QuickSelect.sortFirstItems(topK);
+        qs.sortFirstItems(topK);
         //dump(distances, topK);
       }
 
@@ -131,7 +124,7 @@ public class InitializerCR implements Control
       {
         assert j < topK: "InitializerCR: Ran out of close neighbors -- Increase topK value (currently "+topK+")";
           
-        int closeNeighborID = QuickSelect.ids[j++];
+        int closeNeighborID = qs.ids[j++];
         if (closeNeighborID == thisNode.getID())
           continue;
 
@@ -283,7 +276,7 @@ public class InitializerCR implements Control
   {
     for (int i=0; i<topK; i++)
     {
-      int index = QuickSelect.ids[i];
+      int index = qs.ids[i];
       System.out.println(i+"  "+index+"  "+distances[index]);
     }
     System.out.println();
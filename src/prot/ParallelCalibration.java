@@ -0,0 +1,111 @@
+package prot;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+
+/**
+ * Calibrates all {@link Perigee} nodes at once, on the first call of the
+ * calibration round, instead of each node on its own call. Used by
+ * {@link Perigee} if its parameter {@code calibration_threads} is positive.
+ *
+ * <ol>
+ * <li>In parallel, on a fork-join pool of {@code calibration_threads}
+ * threads, each node picks the outgoing peers to drop, from its own
+ * scores only (see {@link Perigee#weakestOutgoing}).</li>
+ * <li>One node after the other, in order of node ID, each node drops those
+ * peers. Then, again in order of node ID, each node fills in its outgoing
+ * peers with random ones having free incoming slots, drawing from a
+ * generator of its own. As nodes commit in a fixed order, the first ones
+ * get the free slots.</li>
+ * <li>In parallel, each node resets its scores.</li>
+ * </ol>
+ *
+ * Results are thus identical for any number of threads. They differ from
+ * calibrating each node on its own, though, where nodes interleave drops
+ * and fills in the engine's order, and draw from the global generator.
+ */
+public class ParallelCalibration
+{
+  private final ForkJoinPool pool;
+  private long lastTime = -1;
+
+  private Perigee[] protocols;
+  private Random[] random;  // per node
+  private long[] drops;     // per node, the bit mask of outgoing peers to drop
+
+
+
+  ParallelCalibration(int threads)
+  {
+    pool = new ForkJoinPool(threads);
+  }
+
+
+
+  /**
+   * Calibrates all nodes, unless done already at this time.
+   */
+  void calibrate(Perigee caller)
+  {
+    if (CommonState.getTime() == lastTime)
+      return;
+    lastTime = CommonState.getTime();
+
+    if (protocols == null)
+      init(caller.myPid());
+
+    forEachNode(i -> drops[i] = protocols[i].weakestOutgoing());
+
+    for (int i=0; i<protocols.length; i++)
+      protocols[i].dropOutgoing(drops[i]);
+    for (int i=0; i<protocols.length; i++)
+      protocols[i].fillOutgoing(random[i]);
+
+    forEachNode(i -> protocols[i].resetScores());
+  }
+
+
+
+  private void init(int pid)
+  {
+    protocols = new Perigee[Network.size()];
+    random = new Random[Network.size()];
+    drops = new long[Network.size()];
+    SplittableRandom seeds = new SplittableRandom(CommonState.r.nextLong());
+    for (int i=0; i<Network.size(); i++)
+    {
+      assert Network.get(i).getID() == i;
+      protocols[i] = (Perigee) Network.get(i).getProtocol(pid);
+      random[i] = new Random(seeds.nextLong());
+    }
+  }
+
+
+
+  /**
+   * Runs {@code action} for every node ID, in parallel, and waits for all.
+   */
+  private void forEachNode(IntConsumer action)
+  {
+    try
+    {
+      pool.submit(() -> IntStream.range(0, protocols.length).parallel().forEach(action)).get();
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException("Parallel calibration interrupted", e);
+    }
+  }
+}
@@ -9,10 +9,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import base.BaseDissemination;
-import base.Stats;
+import base.DeliveryTrees;
+import base.Vivaldi;
 import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.core.CommonState;
 import peernet.core.Engine;
 import peernet.core.Engine.Type;
@@ -27,6 +30,26 @@ import peernet.transport.AddressSim;
  * Scores peers, and periodically calibrates neighbors.
  * Basically this is the class to run the Perigee model.
  * 
+ * Parameter {@code solver} selects whether to simulate blocks ({@code off},
+ * the default), to compute their dissemination over trees that are
+ * repaired after each calibration ({@code on}), or to simulate and check
+ * the simulation against the trees ({@code check}), see
+ * {@link DeliveryTrees}. Both need a deterministic transport, and
+ * {@code body_requests} no lower than any node's number of peers.
+ * 
+ * Each calibration drops the outgoing peers chosen by the subclass (see
+ * {@link #weakestOutgoing}), and replaces them with random peers with free
+ * incoming slots (see {@link IncomingSlots}). If parameter
+ * {@code refill_candidates} (default 1) is higher, each replacement is
+ * instead the one predicted closest to me among that many such peers, by
+ * {@link Vivaldi} coordinates learned from body requests, falling back to
+ * the first one while they have no samples (as with {@code solver on},
+ * which sends no messages). If parameter {@code calibration_threads} is
+ * positive, all nodes calibrate at once, in two phases, see
+ * {@link ParallelCalibration}. Outgoing peers are identified by their
+ * index in {@code outgoingSelections}, in bit masks, so {@code outgoing} is
+ * at most 64.
+ * 
  * @author spyros
  *
  */
@@ -35,16 +58,35 @@ public abstract class Perigee extends BaseDissemination
   private static final String PAR_OUTGOING = "outgoing";
   private static final String PAR_INCOMING = "incoming";
   private static final String PAR_REPLACE = "weakest_links";
+  private static final String PAR_SOLVER = "solver";
+  private static final String PAR_CALIBRATION_THREADS = "calibration_threads";
+  private static final String PAR_REFILL_CANDIDATES = "refill_candidates";
 
   ArrayList<Peer> outgoingSelections;    // Peers selected by me
   ArrayList<Peer> incomingSelections;    // Peers that selected me
 
-  static protected int numIncoming;
-  static protected int numOutgoing;
-  static protected int weakestLinks;
+  protected final int numIncoming;
+  protected final int numOutgoing;
+  protected final int weakestLinks;
 
   protected HashMap<Address, Integer> peerMapping;
 
+  /** Shared by all clones, or null to simulate. */
+  private final DeliveryTrees solver;
+  private final boolean checkSolver;
+
+  /** Shared by all clones, or null to calibrate each node on its own. */
+  private final ParallelCalibration calibration;
+
+  /** Shared by all clones. */
+  private final IncomingSlots incomingSlots;
+
+  private final int refillCandidates;
+  private final int[] candidates;  // scratch, shared by all clones, as refills are serial
+
+  /** Shared by all clones, or null if refilling at random. */
+  private final Vivaldi coordinates;
+
 
 
   public Perigee(String prefix)
@@ -56,12 +98,37 @@ public abstract class Perigee extends BaseDissemination
     incomingSelections = new ArrayList<>();
     peerMapping = new HashMap<>();
 
-    // Static fields
+    // Settings, copied to all clones
     numIncoming = Configuration.getInt(prefix + "." + PAR_INCOMING);
     numOutgoing = Configuration.getInt(prefix + "." + PAR_OUTGOING);
     weakestLinks = Configuration.getInt(prefix + "." + PAR_REPLACE);
 
     assert weakestLinks <= numOutgoing: PAR_REPLACE + " cannot be higher than "+PAR_OUTGOING;
+    if (numOutgoing > Long.SIZE)
+      throw new IllegalParameterException(prefix + "." + PAR_OUTGOING, "At most "+Long.SIZE+" outgoing peers are supported");
+
+    String mode = Configuration.getString(prefix+"."+PAR_SOLVER, "off");
+    switch (mode)
+    {
+      case "off": solver = null; break;
+      case "on": solver = new DeliveryTrees(false); break;
+      case "check": solver = new DeliveryTrees(true); break;
+      default:
+        throw new IllegalParameterException(prefix+"."+PAR_SOLVER, "Expected off, on, or check, not "+mode);
+    }
+    checkSolver = mode.equals("check");
+
+    int threads = Configuration.getInt(prefix+"."+PAR_CALIBRATION_THREADS, 0);
+    if (threads > 0 && Configuration.contains(prefix+".randstart"))
+      throw new IllegalParameterException(prefix+"."+PAR_CALIBRATION_THREADS, "Nodes calibrating at once cannot start at random times");
+    calibration = threads > 0 ? new ParallelCalibration(threads) : null;
+    incomingSlots = new IncomingSlots(numIncoming);
+
+    refillCandidates = Configuration.getInt(prefix+"."+PAR_REFILL_CANDIDATES, 1);
+    if (refillCandidates < 1)
+      throw new IllegalParameterException(prefix+"."+PAR_REFILL_CANDIDATES, "Expected at least 1 candidate");
+    coordinates = refillCandidates > 1 ? context().enableCoordinates() : null;
+    candidates = new int[refillCandidates];
   }
 
 
@@ -81,23 +148,186 @@ public abstract class Perigee extends BaseDissemination
   public void nextCycle(int schedId)
   {
     // Models the calibration rounds
-    calibrate();
+    if (calibration == null)
+      calibrate();
+    else
+      calibration.calibrate(this);  // all nodes, on the first one's call
+  }
+
+
+
+  /**
+   * Replaces my weakest outgoing peers with random ones.
+   */
+  protected void calibrate()
+  {
+    dropOutgoing(weakestOutgoing());
+    fillOutgoing(CommonState.r);
+    resetScores();
   }
 
 
 
-  protected abstract void calibrate();
+  /**
+   * Returns the bit mask of the indexes of my outgoing peers to drop, based
+   * on my scores. It reads no other node's state, so that all nodes can do
+   * this in parallel.
+   */
+  protected abstract long weakestOutgoing();
+
+
+
+  /**
+   * Resets my scores, after my outgoing peers changed.
+   */
+  protected abstract void resetScores();
+
+
+
+  /**
+   * Removes the (bidirectional) links between me and each of the outgoing
+   * peers in bit mask {@code drop}.
+   */
+  void dropOutgoing(long drop)
+  {
+    for (int index=outgoingSelections.size()-1; index>=0; index--)
+    {
+      if ((drop & 1L<<index) == 0)
+        continue;
+
+      // remove my index-th outgoing neighbor
+      Peer weakPeer = outgoingSelections.remove(index);
+      removeDownstreamPeer(weakPeer);
+
+      // remove me from other peer
+      Perigee weakProt = (Perigee) peer2prot(weakPeer);
+      weakProt.incomingSelections.remove(myPeer());
+      weakProt.removeDownstreamPeer(myPeer());
+      incomingSlots.update(weakProt);
+    }
+  }
+
+
+
+  /**
+   * Fills in all missing outgoing links with random peers, drawn from
+   * {@code random}, that have free incoming slots, as long as there are
+   * any.
+   */
+  void fillOutgoing(Random random)
+  {
+    int myId = (int) myNode().getID();
+    if (coordinates != null)
+      coordinates.update(myId);
+
+    incomingSlots.startDrawing(this);
+    while (outgoingSelections.size() < numOutgoing)
+    {
+      // pick random peer with free incoming slots, other than me and my neighbors
+      int i = incomingSlots.draw(random, degree());
+      if (i == -1)
+        break;
+
+      // or the closest of several such peers, putting back the others
+      if (refillCandidates > 1)
+      {
+        double predicted = coordinates.predict(myId, i);
+        candidates[0] = i;
+        int drawn = 1;
+        while (drawn < refillCandidates)
+        {
+          int candidate = incomingSlots.draw(random, degree());
+          if (candidate == -1)
+            break;
+          candidates[drawn++] = candidate;
+          double p = coordinates.predict(myId, candidate);
+          if (p < predicted)
+          {
+            i = candidate;
+            predicted = p;
+          }
+        }
+        for (int c=0; c<drawn; c++)
+          if (candidates[c] != i)
+            incomingSlots.release(candidates[c]);
+      }
+      Peer newPeer = id2peer(i);
+      Perigee newProt = (Perigee) peer2prot(newPeer);
+
+      // if all is ok, add that node to me
+      outgoingSelections.add(newPeer);
+      addDownstreamPeer(newPeer);
+
+      // and add myself to that node!
+      newProt.incomingSelections.add(myPeer());
+      newProt.addDownstreamPeer(myPeer());
+      incomingSlots.update(newProt);
+    }
+  }
+
+
+
+  /**
+   * Maps the addresses of my outgoing peers to their indexes, see
+   * {@link #addr2index}.
+   */
+  protected void mapOutgoing()
+  {
+    peerMapping.clear();
+    int index=0;
+    for (Peer peer: outgoingSelections)
+      peerMapping.put(peer.address, index++);
+  }
+
+
+
+  @Override
+  public void generateBlock(int blockId)
+  {
+    if (solver == null)
+      super.generateBlock(blockId);
+    else if (checkSolver)
+    {
+      solver.solve(this, blockId);
+      super.generateBlock(blockId);  // deliveries are checked in hookReceivedBody()
+    }
+    else
+      solver.deliver(this, blockId);
+  }
+
 
 
   @Override
   protected void hookReceivedBody(int blockId, long relativeTime, int hops)
   {
-    Stats.reportDelivery(blockId, relativeTime, hops);
+    context().reportDelivery(blockId, (int) myNode().getID(), relativeTime, hops);
+    if (checkSolver)
+      solver.check(myNode(), blockId, relativeTime, hops);
     //System.out.println(relativeTime+"\t"+msg.replyTo+" -> "+myNode().getID());
   }
 
 
 
+  @Override
+  public void addDownstreamPeer(Peer neighbor)
+  {
+    super.addDownstreamPeer(neighbor);
+    if (solver != null)
+      solver.linkAdded(myNode(), neighbor);
+  }
+
+
+
+  @Override
+  public void removeDownstreamPeer(Peer neighbor)
+  {
+    super.removeDownstreamPeer(neighbor);
+    if (solver != null)
+      solver.linkRemoved(myNode(), neighbor);
+  }
+
+
+
   @Override
   public int degree()
   {
@@ -117,7 +347,7 @@ public abstract class Perigee extends BaseDissemination
   {
     assert(Engine.getType() == Type.SIM);
     Node node = Network.get(id);
-    Protocol prot = node.getProtocol(pid);
+    Protocol prot = node.getProtocol(myPid());
     Peer peer = prot.myPeer();
     return peer;
   }
@@ -143,7 +373,7 @@ public abstract class Perigee extends BaseDissemination
   {
     assert(Engine.getType() == Type.SIM);
     Node node = ((AddressSim) addr).node;
-    Protocol prot = node.getProtocol(pid);
+    Protocol prot = node.getProtocol(myPid());
     Peer peer = prot.myPeer();
     return peer;
   }
@@ -155,7 +385,7 @@ public abstract class Perigee extends BaseDissemination
     assert(Engine.getType() == Type.SIM);
     AddressSim addr = (AddressSim) peer.address;
     Node node = addr.node;
-    Protocol prot = node.getProtocol(pid);
+    Protocol prot = node.getProtocol(myPid());
     return prot;
   }
 
@@ -176,6 +406,7 @@ public abstract class Perigee extends BaseDissemination
     // Record my outgoing and their incoming links
     outgoingSelections.add(neighbor);
     other.incomingSelections.add(myPeer());
+    incomingSlots.update(other);
 
     // Create bidirectional link in the lower layer
     addDownstreamPeer(neighbor);
@@ -0,0 +1,284 @@
+package prot;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.CommonState;
+import peernet.core.Peer;
+import peernet.transport.Address;
+
+/**
+ * Perigee as a multi-armed bandit: each outgoing peer is an arm, pulled
+ * once per block, and rewarded by how early it delivered the block's
+ * header among my outgoing peers, from 1 for the first to 0 for the last
+ * (or none). Unlike {@link PerigeeSingle}, statistics survive calibration,
+ * multiplied by parameter {@code decay} (default 0.5), so that a good peer
+ * need not earn its place again every round.
+ *
+ * On calibration, the {@code weakest_links} peers with the lowest index
+ * are replaced, ties broken by lowest node ID. With parameter
+ * {@code policy ucb} (the default), the index is the UCB1 upper bound of
+ * the mean reward, whose confidence term is scaled by parameter
+ * {@code exploration} (default 0.5), so peers never pulled are kept. With
+ * {@code policy thompson}, it is a sample of the Beta posterior of the
+ * mean reward, drawn from a generator of each node's own, so that nodes
+ * can calibrate in parallel.
+ *
+ * Statistics are kept by the index of outgoing peers in
+ * {@code outgoingSelections}, along with their node IDs, and moved to the
+ * peers' new indexes after calibration.
+ */
+public class PerigeeBandit extends Perigee
+{
+  private static final String PAR_POLICY = "policy";
+  private static final String PAR_DECAY = "decay";
+  private static final String PAR_EXPLORATION = "exploration";
+
+  private final boolean thompson;
+  private final double decay;
+  private final double exploration;
+
+  /*
+   * Node ID, decayed pulls and decayed rewards of each outgoing peer, by
+   * its index in 'outgoingSelections', and spares to remap them into.
+   */
+  private long[] ids;
+  private double[] pulls;
+  private double[] rewards;
+  private long[] spareIds;
+  private double[] sparePulls;
+  private double[] spareRewards;
+  private double[] index;  // scratch for calibration
+
+  /** Per node, for Thompson sampling only. */
+  private Random random;
+
+  /*
+   * The block whose headers are being ranked, or -1 if none yet. If a
+   * calibration comes in the middle of it, the rest of it is not scored,
+   * as outgoing peers may have changed indexes, and it was pulled already.
+   */
+  private int currentBlockId = -1;
+  private int rank;
+  private boolean skipBlock;
+
+
+
+  public PerigeeBandit(String prefix)
+  {
+    super(prefix);
+
+    String policy = Configuration.getString(prefix+"."+PAR_POLICY, "ucb");
+    switch (policy)
+    {
+      case "ucb": thompson = false; break;
+      case "thompson": thompson = true; break;
+      default:
+        throw new IllegalParameterException(prefix+"."+PAR_POLICY, "Expected ucb or thompson, not "+policy);
+    }
+    decay = Configuration.getDouble(prefix+"."+PAR_DECAY, 0.5);
+    if (decay < 0 || decay > 1)
+      throw new IllegalParameterException(prefix+"."+PAR_DECAY, "Expected a value between 0 and 1");
+    exploration = Configuration.getDouble(prefix+"."+PAR_EXPLORATION, 0.5);
+  }
+
+
+
+  public Object clone()
+  {
+    PerigeeBandit d = (PerigeeBandit) super.clone();
+    d.allocate(numOutgoing);
+    if (thompson)
+      d.random = new Random(CommonState.r.nextLong());
+    return d;
+  }
+
+
+
+  private void allocate(int size)
+  {
+    ids = new long[size];
+    pulls = new double[size];
+    rewards = new double[size];
+    spareIds = new long[size];
+    sparePulls = new double[size];
+    spareRewards = new double[size];
+    index = new double[size];
+    Arrays.fill(ids, -1);
+  }
+
+
+
+  @Override
+  public boolean addNeighbor(Peer neighbor)
+  {
+    if (!super.addNeighbor(neighbor))
+      return false;
+
+    int i = outgoingSelections.size()-1;
+    if (i >= ids.length)
+    {
+      int size = ids.length;
+      ids = Arrays.copyOf(ids, i+1);
+      pulls = Arrays.copyOf(pulls, i+1);
+      rewards = Arrays.copyOf(rewards, i+1);
+      spareIds = new long[i+1];
+      sparePulls = new double[i+1];
+      spareRewards = new double[i+1];
+      index = new double[i+1];
+      Arrays.fill(ids, size, i+1, -1);
+    }
+    ids[i] = neighbor.getID();
+    peerMapping.put(neighbor.address, i);
+    return true;
+  }
+
+
+
+  @Override
+  protected void hookReceivedHeader(int blockId, long relativeTime, int hops, Address from)
+  {
+    // On a new block, pull all my outgoing peers
+    if (blockId != currentBlockId)
+    {
+      currentBlockId = blockId;
+      rank = 0;
+      skipBlock = false;
+      for (int i=0; i<outgoingSelections.size(); i++)
+        pulls[i]++;
+    }
+    else if (skipBlock)
+      return;
+
+    // Check if the sender is one of my selected (aka, outgoing) peers.
+    int upstreamPeerIndex = addr2index(from);
+    if (upstreamPeerIndex == -1)
+      return;
+
+    // Reward it by the share of my other outgoing peers it beat
+    int peers = outgoingSelections.size();
+    rewards[upstreamPeerIndex] += peers == 1 ? 1 : (double) (peers-1-rank) / (peers-1);
+    rank++;
+  }
+
+
+
+  /**
+   * Returns my {@code weakest_links} outgoing peers with the lowest index.
+   */
+  @Override
+  protected long weakestOutgoing()
+  {
+    int peers = outgoingSelections.size();
+    double totalPulls = 0;
+    for (int i=0; i<peers; i++)
+      totalPulls += pulls[i];
+    for (int i=0; i<peers; i++)
+      index[i] = thompson ? sample(i) : upperBound(i, totalPulls);
+
+    long weakestPeers = 0;
+    for (int k=0; k<Math.min(weakestLinks, peers); k++)
+    {
+      int weakest = -1;
+      for (int i=0; i<peers; i++)
+      {
+        if ((weakestPeers & 1L<<i) != 0)
+          continue;
+        if (weakest == -1 || index[i] < index[weakest] ||
+            index[i] == index[weakest] && ids[i] < ids[weakest])
+          weakest = i;
+      }
+      weakestPeers |= 1L<<weakest;
+    }
+    return weakestPeers;
+  }
+
+
+
+  private double upperBound(int i, double totalPulls)
+  {
+    if (pulls[i] == 0)
+      return Double.POSITIVE_INFINITY;
+    return rewards[i]/pulls[i] + exploration*Math.sqrt(2*Math.log(Math.max(totalPulls, 1)) / pulls[i]);
+  }
+
+
+
+  /**
+   * Samples the mean reward of outgoing peer {@code i} from its
+   * Beta(1+rewards, 1+pulls-rewards) posterior.
+   */
+  private double sample(int i)
+  {
+    double x = gamma(1 + rewards[i]);
+    double y = gamma(1 + pulls[i] - rewards[i]);
+    return x / (x+y);
+  }
+
+
+
+  /**
+   * Samples a Gamma(shape, 1) distribution, for {@code shape} at least 1,
+   * by the method of Marsaglia and Tsang.
+   */
+  private double gamma(double shape)
+  {
+    double d = shape - 1.0/3;
+    double c = 1 / Math.sqrt(9*d);
+    while (true)
+    {
+      double x, v;
+      do
+      {
+        x = random.nextGaussian();
+        v = 1 + c*x;
+      } while (v <= 0);
+      v = v*v*v;
+      double u = random.nextDouble();
+      if (Math.log(u) < 0.5*x*x + d - d*v + d*Math.log(v))
+        return d*v;
+    }
+  }
+
+
+
+  /**
+   * Moves the decayed statistics of the outgoing peers I kept to their new
+   * indexes, and starts the new ones afresh.
+   */
+  @Override
+  protected void resetScores()
+  {
+    long[] oldIds = ids;
+    double[] oldPulls = pulls;
+    double[] oldRewards = rewards;
+    ids = spareIds;
+    pulls = sparePulls;
+    rewards = spareRewards;
+    spareIds = oldIds;
+    sparePulls = oldPulls;
+    spareRewards = oldRewards;
+
+    Arrays.fill(ids, -1);
+    Arrays.fill(pulls, 0);
+    Arrays.fill(rewards, 0);
+    for (int i=0; i<outgoingSelections.size(); i++)
+    {
+      ids[i] = outgoingSelections.get(i).getID();
+      for (int j=0; j<oldIds.length; j++)
+      {
+        if (oldIds[j] == ids[i])
+        {
+          pulls[i] = decay * oldPulls[j];
+          rewards[i] = decay * oldRewards[j];
+          break;
+        }
+      }
+    }
+    skipBlock = true;
+
+    mapOutgoing();
+  }
+}
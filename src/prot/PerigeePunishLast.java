@@ -4,7 +4,6 @@
  */
 package prot;
 
-import peernet.core.Peer;
 import peernet.transport.Address;
 
 /**
@@ -22,8 +21,7 @@ import peernet.transport.Address;
  */
 public class PerigeePunishLast extends PerigeeSingle
 {
-  private int prevId = -1;
-  private int currentBlockId = -1;
+  private int prevIndex = -1;
 
   public PerigeePunishLast(String prefix)
   {
@@ -35,27 +33,24 @@ public class PerigeePunishLast extends PerigeeSingle
   @Override
   protected void hookReceivedHeader(int blockId, long relativeTime, int hops, Address from)
   {
-    // Check if we have a new block ID, and if so, reset prevId.
+    // Check if we have a new block ID, and if so, reset prevIndex.
     if (blockId != currentBlockId)
     {
       currentBlockId = blockId;
-      prevId = -1;
+      prevIndex = -1;
     }
 
     // Check if the sender is one of my selected (aka, outgoing) peers.
-    Peer upstreamPeer = addr2peer(from);
-    if (!outgoingSelections.contains(upstreamPeer))
+    int upstreamPeerIndex = addr2index(from);
+    if (upstreamPeerIndex == -1)
       return;
 
     // If some other outgoing peer has previously delivered this block, increase its score.
-    if (prevId != -1)
-    {
-      int score = scoring.getOrDefault(prevId, 0);
-      scoring.put(prevId, score+1);
-    }
+    if (prevIndex != -1)
+      scores[prevIndex]++;
 
-    // And now put this node's ID into prevId, to prepare to get a score point
+    // And now put this peer's index into prevIndex, to prepare to get a score point
     // if it's not the last one to deliver the header.
-    prevId = (int) upstreamPeer.getID();
+    prevIndex = upstreamPeerIndex;
   }
 }
@@ -4,8 +4,6 @@
  */
 package prot;
 
-import peernet.core.CommonState;
-import peernet.core.Peer;
 import peernet.transport.Address;
 
 
@@ -29,8 +27,7 @@ public class PerigeeRewardFirst extends PerigeeSingle
     super(prefix);
   }
 
-  private int currentBlockId = -1;
-  private int firstDeliveryId = -1;
+  private int firstDeliveryIndex = -1;
   private long firstDeliveryTime = 0;
   private boolean alreadyRewarded = false;
 
@@ -39,30 +36,28 @@ public class PerigeeRewardFirst extends PerigeeSingle
   @Override
   protected void hookReceivedHeader(int blockId, long relativeTime, int hops, Address from)
   {
-    // Check if we have a new block ID, and if so, reset firstId.
+    // Check if we have a new block ID, and if so, reset firstDeliveryIndex.
     if (blockId != currentBlockId)
     {
       currentBlockId = blockId;
-      firstDeliveryId = -1;
+      firstDeliveryIndex = -1;
       alreadyRewarded = false;
     }
 
     // Check if the sender is one of my selected (aka, outgoing) peers.
-    Peer upstreamPeer = addr2peer(from);
-    if (!outgoingSelections.contains(upstreamPeer))
+    int upstreamPeerIndex = addr2index(from);
+    if (upstreamPeerIndex == -1)
       return;
 
-    // If this is the first selected peer delivering the block, set firstDeliveryId and firstDeliveryTime
-    if (firstDeliveryId == -1)
+    // If this is the first selected peer delivering the block, set firstDeliveryIndex and firstDeliveryTime
+    if (firstDeliveryIndex == -1)
     {
-      firstDeliveryId = (int) upstreamPeer.getID();
-      firstDeliveryTime = CommonState.getTime();
+      firstDeliveryIndex = upstreamPeerIndex;
+      firstDeliveryTime = relativeTime;
     }
     else if (!alreadyRewarded)  // If some other outgoing peer was the first one to deliver this block, increase that peer's score.
     {
-      int score = scoring.getOrDefault(firstDeliveryId, 0);
-      score += CommonState.getTime() - firstDeliveryTime;
-      scoring.put(firstDeliveryId, score);
+      scores[firstDeliveryIndex] += relativeTime - firstDeliveryTime;
       alreadyRewarded = true;  // to make sure the first peer doesn't receive the reward more than once.
     }
   }
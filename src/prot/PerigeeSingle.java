@@ -4,30 +4,34 @@
  */
 package prot;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import peernet.core.CommonState;
-import peernet.core.Network;
+import java.util.Arrays;
+
 import peernet.core.Peer;
 
 /**
  * Scores peers, and periodically calibrates neighbors.
  * Basically this is the class to run the Perigee model.
  * 
+ * Outgoing peers are scored by their index in {@code outgoingSelections},
+ * which {@link #addr2index} finds from their address. On calibration, the
+ * {@code weakest_links} peers with the lowest scores are replaced, ties
+ * broken by lowest node ID.
+ * 
  * @author spyros
  *
  */
 public abstract class PerigeeSingle extends Perigee
 {
   /*
-   * Structure storing the scoring of individual nodes.
-   * Maps each node ID to its score (an integer).
+   * Score of each outgoing peer, by its index in 'outgoingSelections'.
+   */
+  int[] scores;
+
+  /*
+   * The block whose headers are being scored, or -1 if none, e.g., right
+   * after calibration, as outgoing peers may have changed indexes.
    */
-  HashMap<Integer, Integer> scoring = new HashMap<Integer, Integer>();
+  int currentBlockId = -1;
 
 
 
@@ -41,87 +45,65 @@ public abstract class PerigeeSingle extends Perigee
   public Object clone()
   {
     PerigeeSingle d = (PerigeeSingle) super.clone();
-    d.scoring = (HashMap<Integer, Integer>) scoring.clone();
+    d.scores = new int[numOutgoing];
     return d;
   }
 
 
 
-  public void calibrate()
+  @Override
+  public boolean addNeighbor(Peer neighbor)
+  {
+    if (!super.addNeighbor(neighbor))
+      return false;
+
+    int index = outgoingSelections.size()-1;
+    if (index >= scores.length)
+      scores = Arrays.copyOf(scores, index+1);
+    peerMapping.put(neighbor.address, index);
+    return true;
+  }
+
+
+
+  /**
+   * Returns my {@code weakest_links} outgoing peers with the lowest scores.
+   */
+  @Override
+  protected long weakestOutgoing()
   {
-    // Remove weakest link, if scores are in place
-    if (scoring.size() > 0 & weakestLinks > 0)
+    long weakestPeers = 0;
+    if (outgoingSelections.size() > 0 & weakestLinks > 0)
     {
-      // First, store the scores into an ArrayList, sort it, and find the k-th weakest one
-      List<Integer> scores = new ArrayList<Integer>(scoring.values());
-      Collections.sort(scores);
-      int minScore = scores.get(weakestLinks-1);
-
-      // Then, go through all <ID,score> tuples and store the IDs of the weakest links into 'minScoreIds'
-      ArrayList<Integer> minScoreIds = new ArrayList<>();
-      for (Map.Entry<Integer,Integer> entry: scoring.entrySet())
+      int peers = outgoingSelections.size();
+      for (int k=0; k<Math.min(weakestLinks, peers); k++)
       {
-        int score = entry.getValue();
-        if (score<=minScore)
+        int weakest = -1;
+        for (int i=0; i<peers; i++)
         {
-          int id = entry.getKey();
-          minScoreIds.add(id);
-          if (minScoreIds.size() >= weakestLinks)
-            break;
+          if ((weakestPeers & 1L<<i) != 0)
+            continue;
+          if (weakest == -1 || scores[i] < scores[weakest] ||
+              scores[i] == scores[weakest] && outgoingSelections.get(i).getID() < outgoingSelections.get(weakest).getID())
+            weakest = i;
         }
-      }
-
-      // Finally, properly remove the (bidirectional) links between me and each of the weakest peers
-      for (int id: minScoreIds)
-      {
-        // remove this peer from me
-        Peer weakPeer = id2peer(id);
-        outgoingSelections.remove(weakPeer);
-        removeDownstreamPeer(weakPeer);
-
-        // remove me from other peer
-        PerigeeSingle weakProt = (PerigeeSingle) peer2prot(weakPeer);
-        weakProt.incomingSelections.remove(myPeer());
-        weakProt.removeDownstreamPeer(myPeer());
+        weakestPeers |= 1L<<weakest;
       }
     }
+    return weakestPeers;
+  }
+
 
-    // Fill in all missing links
-    while (outgoingSelections.size() < numOutgoing)
-    {
-      // pick random neighbor
-      int i = CommonState.r.nextInt(Network.size());
-      Peer newPeer = id2peer(i);
-   
-      // check if I randomly picked myself, and skip me! :-)
-      if (newPeer.equals(myPeer()))
-        continue;
-
-      // check if I already have this peer (either as outgoing or incoming)
-      if (contains(newPeer))
-        continue;
-
-      // else, check if the other peer has available incoming slots
-      PerigeeSingle newProt = (PerigeeSingle) peer2prot(newPeer);
-      if (newProt.incomingSelections.size() >= numIncoming)
-        continue;
-
-      // if all is ok, add that node to me
-      outgoingSelections.add(newPeer);
-      addDownstreamPeer(newPeer);
-
-      // and add myself to that node!
-      newProt.incomingSelections.add(myPeer());
-      newProt.addDownstreamPeer(myPeer());
-    }
 
+  @Override
+  protected void resetScores()
+  {
     // Reset scoring to allow the future assessment of the updated set of outgoing peers
     // It is important to explicitly set the initial score of all selected peers to 0,
-    // as some never receive any points, and they would not be replaced if not present
-    // in the scoring hashmap.
-    scoring.clear();
-    for (Peer p: outgoingSelections)
-      scoring.put((int) p.getID(), 0);
-  }
+    // as some never receive any points, and they still have to be replaced.
+    Arrays.fill(scores, 0);
+    currentBlockId = -1;
 
+    mapOutgoing();
+  }
 }
@@ -5,57 +5,94 @@
 package prot;
 
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
 
-import peernet.core.CommonState;
-import peernet.core.Network;
-import peernet.core.Peer;
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.transport.Address;
-import util.QuickSelect;
+import util.RunningPercentiles;
 
 /**
  * Scores peers, and periodically calibrates neighbors.
  * Basically this is the class to run the Perigee model.
  * 
+ * Each subset of outgoing peers is scored by the 90th percentile of its
+ * scores over the blocks since the last calibration. The percentile is
+ * kept up to date as blocks are scored (see {@link RunningPercentiles}), so
+ * calibration only picks the subset with the lowest, however many blocks
+ * it covers.
+ * 
+ * As there are C({@code outgoing}, {@code weakest_links}) subsets, scoring
+ * all of them is only feasible for few outgoing peers. With parameter
+ * {@code selection} set to {@code greedy} (instead of {@code exact}, the
+ * default), each node only keeps the time each outgoing peer delivered
+ * each block, and calibration builds the subset greedily: starting from
+ * none, it adds the peer that lowers the subset's percentile score the
+ * most (ties broken by the sum of the subset's scores), until the subset
+ * has all but {@code weakest_links} peers. This scores O(outgoing^2)
+ * candidate subsets instead, and finds the best subset whenever the best
+ * subsets of each size are nested (e.g., when a few peers deliver first).
+ * 
+ * Subsets are bit masks of the indexes of outgoing peers in
+ * {@code outgoingSelections}.
+ * 
  * @author spyros
  *
  */
 public class PerigeeSubset extends Perigee
 {
-  static ArrayList<BitSet> nodesInSubset;
-  static ArrayList<ArrayList<Integer>> subsetsOfNode;
-  static BitSet tmpSubset;
-
   static private final int LOWEST_SCORE = 10000; 
   static private final int SCORE_PERCENTILE = 90; 
-  
-  static int[] scores = new int[0];
-  static int[] subsetScores;
-  
-  private ArrayList<int[]> allScores;
+  static private final int MAX_SUBSETS = 1<<16;
+
+  static private final String PAR_SELECTION = "selection";
+
+  private final boolean greedy;
+
+  // Built by the prototype, and shared by all clones
+  private final ArrayList<Long> nodesInSubset;  // bit masks of outgoing peer indexes
+  private final ArrayList<ArrayList<Integer>> subsetsOfNode;
+
+  // Per subset, its percentile score over the blocks since the last calibration
+  private RunningPercentiles percentileScores;
   private int[] currentScores;
+  private boolean currentPending;  // whether currentScores still has to be added to percentileScores
+  private int scoredBlocks;
   private int currentBlockId = -1;
   private long firstDelivery;
   private int numSubsets;
   private int completedSubsets;
 
+  // Greedy selection: the score of each outgoing peer for each block since
+  // the last calibration, at [block*numOutgoing+peer], and the current
+  // block's row, or -1 if it is not recorded
+  private char[] peerScores;
+  private int peerScoredBlocks;
+  private int currentRow = -1;
+
 
 
   public PerigeeSubset(String prefix)
   {
     super(prefix);
 
-    allScores = new ArrayList<int[]>();
+    String selection = Configuration.getString(prefix+"."+PAR_SELECTION, "exact");
+    if (!selection.equals("exact") && !selection.equals("greedy"))
+      throw new IllegalParameterException(prefix+"."+PAR_SELECTION, "Expected exact or greedy, not "+selection);
+    greedy = selection.equals("greedy");
+
+    if (!greedy && combinations(numOutgoing, weakestLinks) > MAX_SUBSETS)
+      throw new IllegalParameterException(prefix+"."+PAR_SELECTION, "Too many subsets ("+combinations(numOutgoing, weakestLinks)+
+          ") of outgoing peers to score them all, use selection greedy instead");
 
     // Prepare subsets
-    tmpSubset = new BitSet();  // temporary BitSet for walking through all combinations recursively
-    nodesInSubset = new ArrayList<BitSet>();
-    n_choose_k(numOutgoing, numOutgoing-weakestLinks);
+    nodesInSubset = new ArrayList<Long>();
+    if (!greedy)
+      n_choose_k(numOutgoing, numOutgoing-weakestLinks, 0);
 
     numSubsets = nodesInSubset.size();
-    assert numSubsets == combinations(numOutgoing, weakestLinks);
+    assert greedy || numSubsets == combinations(numOutgoing, weakestLinks);
     
-    subsetScores = new int[numSubsets];
 
     subsetsOfNode = new ArrayList<ArrayList<Integer>>();
     for (int i=0; i<numOutgoing; i++)
@@ -63,7 +100,7 @@ public class PerigeeSubset extends Perigee
 
     for (int i=0; i<numOutgoing; i++)
       for (int j=0; j<numSubsets; j++)
-        if (nodesInSubset.get(j).get(i))
+        if ((nodesInSubset.get(j) & 1L<<i) != 0)
           subsetsOfNode.get(i).add(j);
 
 //    for (int i=0; i<numSubsets; i++)
@@ -75,11 +112,12 @@ public class PerigeeSubset extends Perigee
 
 
 
-  @SuppressWarnings("unchecked")
   public Object clone()
   {
     PerigeeSubset d = (PerigeeSubset) super.clone();
-    d.allScores = (ArrayList<int[]>) allScores.clone();
+    d.currentScores = new int[numSubsets];
+    d.percentileScores = new RunningPercentiles(numSubsets, SCORE_PERCENTILE);
+    d.peerScores = greedy ? new char[16*numOutgoing] : null;
     return d;
   }
 
@@ -87,105 +125,123 @@ public class PerigeeSubset extends Perigee
 
   private int getSubsetScore(int subset)
   {
-    if (scores.length != allScores.size())
-      scores = new int[allScores.size()];
-
-    int percentile = SCORE_PERCENTILE * scores.length / 100;
+    return Math.min(LOWEST_SCORE, percentileScores.value(subset, LOWEST_SCORE));
+  }
 
-    for (int i=0; i<scores.length; i++)
-      scores[i] = allScores.get(i)[subset];
 
-    QuickSelect.quickSelect(scores, percentile);
 
-    int min=LOWEST_SCORE;
-//    for (int j=0; j<scores.length; j++)
-//      System.out.println(j+" "+scores[QuickSelect.ids[j]]);
-    for (int j=percentile; j<scores.length; j++)
-      min = Math.min(min, scores[QuickSelect.ids[j]]);
+  /**
+   * Adds the scores of the current block to the subsets' percentiles, if
+   * not added yet. Subsets not scored keep {@link #LOWEST_SCORE}.
+   */
+  private void addCurrentScores()
+  {
+    if (!currentPending)
+      return;
 
-    return min;
+    for (int i=0; i<numSubsets; i++)
+      percentileScores.add(i, currentScores[i]);
+    scoredBlocks++;
+    currentPending = false;
   }
 
 
 
-  public void calibrate()
+  /**
+   * Returns the subset with the best score (min number), scoring them all.
+   */
+  private long exactSubset()
   {
-    // Remove weakest link, if scores are in place
-    if (allScores.size() > 0 & weakestLinks > 0)
+    int bestScore = LOWEST_SCORE;
+    int strongestSubset=-1;
+    for (int i=0; i<numSubsets; i++)
     {
-      for (int i=0; i<numSubsets; i++)
-        subsetScores[i] = getSubsetScore(i);
-
-      // Find the subset with the best score (min number)
-      int bestScore = LOWEST_SCORE;
-      int strongestSubset=-1;
-      for (int i=0; i<numSubsets; i++)
+      int score = getSubsetScore(i);
+      if (score < bestScore)
       {
-        if (subsetScores[i] < bestScore)
-        {
-          strongestSubset = i;
-          bestScore = subsetScores[i];
-        }
+        strongestSubset = i;
+        bestScore = score;
       }
+    }
+    return nodesInSubset.get(strongestSubset);
+  }
+
 
-      // Finally, properly remove the (bidirectional) links between me and each of
-      // the weakest peers (i.e., the peers NOT belonging to the strongest subset)
-      for (int index=numOutgoing-1; index>=0; index--)
+
+  /**
+   * Returns a subset with a good score, built greedily, see above.
+   */
+  private long greedySubset()
+  {
+    int blocks = peerScoredBlocks;
+    int rank = SCORE_PERCENTILE * blocks / 100;
+    int[] subset = new int[blocks];     // per block, the score of the subset so far
+    int[] candidate = new int[blocks];  // per block, the score of the subset with a candidate
+    Arrays.fill(subset, LOWEST_SCORE);
+
+    long chosen = 0;
+    for (int size=0; size<numOutgoing-weakestLinks; size++)
+    {
+      int best = -1;
+      int bestScore = Integer.MAX_VALUE;
+      long bestSum = Long.MAX_VALUE;
+      for (int peer=0; peer<numOutgoing; peer++)
       {
-        if (nodesInSubset.get(strongestSubset).get(index))
+        if ((chosen & 1L<<peer) != 0)
           continue;
 
-        // remove my i-th outgoing neighbor
-        Peer weakPeer = outgoingSelections.get(index);
-        outgoingSelections.remove(weakPeer);
-        removeDownstreamPeer(weakPeer);
+        long sum = 0;
+        for (int b=0; b<blocks; b++)
+          sum += candidate[b] = Math.min(subset[b], peerScores[b*numOutgoing + peer]);
+        Arrays.sort(candidate);
+        int score = Math.min(LOWEST_SCORE, candidate[rank]);
 
-        // remove me from other peer
-        PerigeeSubset weakProt = (PerigeeSubset) peer2prot(weakPeer);
-        weakProt.incomingSelections.remove(myPeer());
-        weakProt.removeDownstreamPeer(myPeer());
+        if (score < bestScore || score == bestScore && sum < bestSum)
+        {
+          best = peer;
+          bestScore = score;
+          bestSum = sum;
+        }
       }
+
+      chosen |= 1L<<best;
+      for (int b=0; b<blocks; b++)
+        subset[b] = Math.min(subset[b], peerScores[b*numOutgoing + best]);
     }
+    return chosen;
+  }
 
-    // Fill in all missing links
-    while (outgoingSelections.size() < numOutgoing)
+
+
+  /**
+   * Returns my outgoing peers not in the strongest subset.
+   */
+  @Override
+  protected long weakestOutgoing()
+  {
+    addCurrentScores();
+
+    // Remove weakest link, if scores are in place
+    if ((greedy ? peerScoredBlocks : scoredBlocks) > 0 & weakestLinks > 0)
     {
-      // pick random neighbor
-      int i = CommonState.r.nextInt(Network.size());
-      Peer newPeer = id2peer(i);
-   
-      // check if I randomly picked myself, and skip me! :-)
-      if (newPeer.equals(myPeer()))
-        continue;
-
-      // check if I already have this peer (either as outgoing or incoming)
-      if (contains(newPeer))
-        continue;
-
-      // else, check if the other peer has available incoming slots
-      PerigeeSubset newProt = (PerigeeSubset) peer2prot(newPeer);
-      if (newProt.incomingSelections.size() >= numIncoming)
-        continue;
-
-      // if all is ok, add that node to me
-      outgoingSelections.add(newPeer);
-      addDownstreamPeer(newPeer);
-
-      // and add myself to that node!
-      newProt.incomingSelections.add(myPeer());
-      newProt.addDownstreamPeer(myPeer());
+      long strongestSubset = greedy ? greedySubset() : exactSubset();
+      return ~strongestSubset & (numOutgoing == Long.SIZE ? -1L : (1L<<numOutgoing)-1);
     }
+    return 0;
+  }
+
+
 
+  @Override
+  protected void resetScores()
+  {
     // Reset scoring to allow the future assessment of the updated set of outgoing peers
-    // It is important to explicitly set the initial score of all selected peers to 0,
-    // as some never receive any points, and they would not be replaced if not present
-    // in the scoring hashmap.
-    allScores.clear();
-
-    peerMapping.clear();
-    int index=0;
-    for (Peer peer: outgoingSelections)
-      peerMapping.put(peer.address, index++);
+    percentileScores.clear();
+    scoredBlocks = 0;
+    peerScoredBlocks = 0;
+    currentRow = -1;
+
+    mapOutgoing();
   }
 
 
@@ -199,21 +255,38 @@ public class PerigeeSubset extends Perigee
       return;
 
     // Check if we have a new block ID.
-    // If so, save the current timestamp on 'firstDelivery'
-    // and append a new array of scores in 'allScores'.
+    // If so, add the previous block's scores to the percentiles,
+    // and save the current timestamp on 'firstDelivery'.
     if (blockId != currentBlockId)
     {
+      addCurrentScores();
+
       currentBlockId = blockId;
-      firstDelivery = CommonState.getTime();
+      firstDelivery = relativeTime;
       completedSubsets = 0;
 
-      // create new 'currentScores'
-      currentScores = new int[numSubsets];
-      for (int i=0; i<numSubsets; i++)
-        currentScores[i] = LOWEST_SCORE;
+      if (greedy)
+      {
+        // add a row to 'peerScores'
+        currentRow = peerScoredBlocks++ * numOutgoing;
+        if (currentRow + numOutgoing > peerScores.length)
+          peerScores = Arrays.copyOf(peerScores, 2*peerScores.length);
+        Arrays.fill(peerScores, currentRow, currentRow + numOutgoing, (char) LOWEST_SCORE);
+      }
+      else
+      {
+        // reset 'currentScores'
+        Arrays.fill(currentScores, LOWEST_SCORE);
+        currentPending = true;
+      }
+    }
 
-      // and add it to 'allScores'
-      allScores.add(currentScores);
+    if (greedy)
+    {
+      // Score the upstream peer, if this is its first header for this block
+      if (currentRow >= 0 && peerScores[currentRow + upstreamPeerIndex] == LOWEST_SCORE)
+        peerScores[currentRow + upstreamPeerIndex] = (char) Math.min(relativeTime-firstDelivery, LOWEST_SCORE);
+      return;
     }
 
     // Check if all subsets have received a score for this block.
@@ -221,7 +294,7 @@ public class PerigeeSubset extends Perigee
       return;
     
     // Compute the score to be assigned to subsets seeing this block for the first time.
-    int score = (int)(CommonState.getTime()-firstDelivery);
+    int score = (int)(relativeTime-firstDelivery);
 
     // Go through all subsets of the upstream peer.
     // and assign this score to those that have not received a score yet.
@@ -239,26 +312,23 @@ public class PerigeeSubset extends Perigee
 
   /**
    * Recursively walks through all "n choose k" combinations, and identifies
-   * them in the 'subset' BitSet, populating the 'subsets' ArrayList for each
-   * new subset.
+   * them in the 'tmpSubset' bit mask, populating the 'nodesInSubset' ArrayList
+   * for each new subset.
    * 
    * @param n Total number of elements
    * @param k Number of elements to choose
+   * @param tmpSubset Bit mask of the elements chosen so far
    */
-  private void n_choose_k(int n, int k)
+  private void n_choose_k(int n, int k, long tmpSubset)
   {
     if (k==0)
     {
-      nodesInSubset.add((BitSet) tmpSubset.clone());
+      nodesInSubset.add(tmpSubset);
       return;
     }
 
     while (--n >= k-1)
-    {
-      tmpSubset.set(n);
-      n_choose_k(n, k-1);
-      tmpSubset.clear(n);
-    }
+      n_choose_k(n, k-1, tmpSubset | 1L<<n);
   }
 
 
@@ -268,19 +338,18 @@ public class PerigeeSubset extends Perigee
    * 
    * @param n
    * @param k
-   * @return n choose k
+   * @return n choose k, or Long.MAX_VALUE if it does not fit in a long
    */
-  private static int combinations(int n, int k)
+  private static long combinations(int n, int k)
   {
-    int nominator = 1;
-    int denominator = 1;
-
-    do
+    long combinations = 1;
+    for (int i=0; i<Math.min(k, n-k); i++)
     {
-      nominator *= n--;
-      denominator *= k;
+      // combinations is (n choose i), so the product is divisible by i+1
+      if (combinations > Long.MAX_VALUE / (n-i))
+        return Long.MAX_VALUE;
+      combinations = combinations * (n-i) / (i+1);
     }
-    while (--k >= 1);
-    return nominator / denominator;
+    return combinations;
   }
 }
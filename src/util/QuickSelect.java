@@ -17,13 +17,16 @@ import peernet.core.CommonState;
  * but select the topK (or minK) elements of a list without resorting to
  * an exhaustive (and unnecessary) sorting.
  * 
+ * An instance keeps its {@code ids} from one selection to the next, so each
+ * simulation should use its own (see {@code base.SimulationContext}).
+ * 
  * @author spyros
  *
  */
 public class QuickSelect
 {
-  public static int[] ids = new int[0];
-  private static int[] scores;
+  public int[] ids = new int[0];
+  private int[] scores;
 
 
 
@@ -34,7 +37,7 @@ public class QuickSelect
    * @param size
    * @param topK
    */
-  private static void testQS(int size, int topK)
+  private void testQS(int size, int topK)
   {
     scores = new int[size];
     for (int i=0; i<scores.length; i++)
@@ -53,7 +56,7 @@ public class QuickSelect
 
 
 
-  static void reset(int size)
+  void reset(int size)
   {
     //System.err.println("QS resetting to "+size);
     ids = new int[size];
@@ -63,7 +66,7 @@ public class QuickSelect
 
 
 
-  private static void swap(int i, int j)
+  private void swap(int i, int j)
   {
     int tmp = ids[i];
     ids[i] = ids[j];
@@ -72,7 +75,7 @@ public class QuickSelect
 
 
 
-  private static void shuffle()
+  private void shuffle()
   {
     for (int i=0; i<ids.length; i++)
     {
@@ -85,7 +88,7 @@ public class QuickSelect
 
 
 
-  private static void dump(int count)
+  private void dump(int count)
   {
     for (int i=0; i<count; i++)
       System.out.print(scores[ids[i]]+" "+(i==9 ? "- " : ""));
@@ -107,7 +110,7 @@ public class QuickSelect
    * @param _scores
    * @param topK
    */
-  public static void quickSelect(final int[] _scores, int topK)
+  public void quickSelect(final int[] _scores, int topK)
   {
     if (_scores.length != ids.length)
       reset(_scores.length);
@@ -136,7 +139,7 @@ public class QuickSelect
 
 
 
-  private static int quickSelectLoop(int left, int right)
+  private int quickSelectLoop(int left, int right)
   {
     int pivotScore = scores[ids[left]];
     int i = left+1; 
@@ -164,7 +167,7 @@ public class QuickSelect
 
 
   
-  private static class SortByScore implements Comparator<Integer>
+  private class SortByScore implements Comparator<Integer>
   {
     @Override
     public int compare(Integer idA, Integer idB)
@@ -173,7 +176,7 @@ public class QuickSelect
     }
   }  
   
-  public static void sortFirstItems(int topK)
+  public void sortFirstItems(int topK)
   {
     assert scores.length >= topK: "topK="+topK+" is higher than scores.length="+scores.length;
 
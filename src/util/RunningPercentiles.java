@@ -0,0 +1,163 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the value at a given percentile of each of a number of streams of
+ * integers, exactly, as values are added: with {@code n} values in a
+ * stream, the value of rank {@code percentile*n/100} (from 0) in ascending
+ * order, i.e., the one that {@link QuickSelect#quickSelect} with that
+ * {@code topK} leaves first among the rest.
+ *
+ * The values of each stream are split in two binary heaps: a max-heap of
+ * the values below that rank, and a min-heap of the rest, whose top is
+ * thus the percentile. Adding a value takes O(log n), and the percentile
+ * O(1), without drawing random numbers.
+ *
+ * All heaps share a single array, in which each stream has a region of
+ * {@code capacity} ints, holding its max-heap from the start and its
+ * min-heap backwards from the end. The array only grows, doubling the
+ * capacity, when a stream fills its region, so once it fits the longest
+ * stream, adding values allocates nothing, and {@link #clear} keeps it.
+ */
+public class RunningPercentiles
+{
+  private final int percentile;
+  private final int[] lowerSize;  // per stream
+  private final int[] upperSize;  // per stream
+  private int capacity = 16;      // per stream
+  private int[] heaps;
+
+
+
+  public RunningPercentiles(int streams, int percentile)
+  {
+    this.percentile = percentile;
+    lowerSize = new int[streams];
+    upperSize = new int[streams];
+    heaps = new int[streams*capacity];
+  }
+
+
+
+  public void add(int stream, int value)
+  {
+    if (size(stream) == capacity)
+      grow();
+
+    int lower = stream*capacity;       // root of the max-heap, growing forwards
+    int upper = lower + capacity - 1;  // root of the min-heap, growing backwards
+    if (upperSize[stream] > 0 && value >= heaps[upper])
+      push(upper, -1, upperSize[stream]++, value, false);
+    else
+      push(lower, 1, lowerSize[stream]++, value, true);
+
+    // Rebalance, so that exactly percentile*n/100 values lie below the top of the min-heap
+    int rank = percentile * size(stream) / 100;
+    while (lowerSize[stream] > rank)
+      push(upper, -1, upperSize[stream]++, pop(lower, 1, lowerSize[stream]--, true), false);
+    while (lowerSize[stream] < rank)
+      push(lower, 1, lowerSize[stream]++, pop(upper, -1, upperSize[stream]--, false), true);
+  }
+
+
+
+  /**
+   * Returns the value at the percentile of {@code stream}, or
+   * {@code defaultValue} if no values have been added to it.
+   */
+  public int value(int stream, int defaultValue)
+  {
+    return upperSize[stream] == 0 ? defaultValue : heaps[stream*capacity + capacity - 1];
+  }
+
+
+
+  public int size(int stream)
+  {
+    return lowerSize[stream] + upperSize[stream];
+  }
+
+
+
+  /**
+   * Empties all streams.
+   */
+  public void clear()
+  {
+    Arrays.fill(lowerSize, 0);
+    Arrays.fill(upperSize, 0);
+  }
+
+
+
+  /**
+   * Doubles the region of each stream, moving its min-heap to the new end.
+   */
+  private void grow()
+  {
+    int[] grown = new int[2*heaps.length];
+    for (int s=0; s<lowerSize.length; s++)
+    {
+      System.arraycopy(heaps, s*capacity, grown, s*2*capacity, lowerSize[s]);
+      System.arraycopy(heaps, (s+1)*capacity - upperSize[s], grown, (s+1)*2*capacity - upperSize[s], upperSize[s]);
+    }
+    heaps = grown;
+    capacity *= 2;
+  }
+
+
+
+  /**
+   * Adds {@code value} to the heap of {@code size} values whose i-th
+   * element is at {@code root+step*i}.
+   */
+  private void push(int root, int step, int size, int value, boolean max)
+  {
+    int i = size;
+    while (i > 0)
+    {
+      int parent = (i-1) / 2;
+      int p = heaps[root + step*parent];
+      if (max ? p >= value : p <= value)
+        break;
+      heaps[root + step*i] = p;
+      i = parent;
+    }
+    heaps[root + step*i] = value;
+  }
+
+
+
+  /**
+   * Removes and returns the top of the heap of {@code size} values whose
+   * i-th element is at {@code root+step*i}.
+   */
+  private int pop(int root, int step, int size, boolean max)
+  {
+    int top = heaps[root];
+    int value = heaps[root + step*--size];
+
+    int i = 0;
+    while (2*i+1 < size)
+    {
+      int child = 2*i+1;
+      int c = heaps[root + step*child];
+      if (child+1 < size)
+      {
+        int c2 = heaps[root + step*(child+1)];
+        if (max ? c2 > c : c2 < c)
+        {
+          child++;
+          c = c2;
+        }
+      }
+      if (max ? value >= c : value <= c)
+        break;
+      heaps[root + step*i] = c;
+      i = child;
+    }
+    heaps[root + step*i] = value;
+    return top;
+  }
+}